@@ -0,0 +1,205 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Benchmarks of the branch rate models on random trees. Run with "ant
+ * benchmark", JMH options can be passed with -Dbenchmark.args="...", e.g.
+ * -Dbenchmark.args="-p taxonCount=1000 getRateForBranch".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BranchRateModelBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Models {
+
+        @Param({ "100", "1000", "10000", "100000" })
+        public int taxonCount;
+
+        @Param({ "1", "10" })
+        public int cladeCount;
+
+        Tree tree;
+        List<TaxonSet> clades;
+        FlexibleLocalClockModel flc;
+        FLCRateStatistic rateStatistic;
+        double[] rates;
+        PrintStream out;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            SyntheticModels models = new SyntheticModels(taxonCount);
+            tree = models.createTree(taxonCount);
+            clades = models.createClades(tree, cladeCount);
+            flc = SyntheticModels.createFlexibleLocalClock(tree, clades);
+            rateStatistic = new FLCRateStatistic();
+            rateStatistic.initByName("tree", tree, "branchratemodel", flc);
+            rates = new double[tree.getNodeCount()];
+            out = new PrintStream(OutputStream.nullOutputStream());
+            random = new Random(1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class NormalizedClock {
+
+        @Param({ "100", "1000", "10000", "100000" })
+        public int taxonCount;
+
+        @Param({ "category", "quantile" })
+        public String mode;
+
+        UCRelaxedLineageClockModel clock;
+        double[] rates;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Tree tree = new SyntheticModels(taxonCount).createTree(taxonCount);
+            clock = SyntheticModels.createLineageClock(tree, mode.equals("quantile"), true);
+            rates = new double[tree.getNodeCount()];
+            random = new Random(1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class QuantileClock {
+
+        @Param({ "1000", "10000", "100000" })
+        public int taxonCount;
+
+        @Param({ "false", "true" })
+        public boolean fastInverseCDF;
+
+        UCRelaxedLineageClockModel clock;
+        double[] rates;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Tree tree = new SyntheticModels(taxonCount).createTree(taxonCount);
+            clock = SyntheticModels.createLineageClock(tree, true, false, fastInverseCDF);
+            // every branch gets its own quantile
+            Set<Node> nodes = new HashSet<Node>();
+            for (Node node : tree.getNodesAsArray()) {
+                if (!node.isRoot()) {
+                    nodes.add(node);
+                }
+            }
+            clock.initializeNodeAssignment(nodes);
+            rates = new double[tree.getNodeCount()];
+            random = new Random(1);
+        }
+    }
+
+    @Benchmark
+    public void getRateForBranch(Models models, Blackhole blackhole) {
+        for (Node node : models.tree.getNodesAsArray()) {
+            blackhole.consume(models.flc.getRateForBranch(node));
+        }
+    }
+
+    @Benchmark
+    public void getRatesForAllBranches(Models models, Blackhole blackhole) {
+        models.flc.getRatesForAllBranches(models.rates);
+        blackhole.consume(models.rates);
+    }
+
+    /**
+     * Marks the path from a random leaf to the root as changed, as a topology
+     * move would, and updates the clock assignment.
+     */
+    @Benchmark
+    public void updateNodeIndex(Models models) {
+        Tree tree = models.tree;
+        tree.startEditing(null);
+        tree.getNode(models.random.nextInt(tree.getLeafNodeCount())).makeDirty(Tree.IS_FILTHY);
+        models.flc.updateNodeIndex();
+        tree.setEverythingDirty(false);
+    }
+
+    /**
+     * Changes the category or quantile of one branch and recomputes the
+     * normalized rates, which updates the normalization sums.
+     */
+    @Benchmark
+    public void computeFactor(NormalizedClock state, Blackhole blackhole) {
+        UCRelaxedLineageClockModel clock = state.clock;
+        clock.store();
+        if (state.mode.equals("quantile")) {
+            RealParameter quantiles = clock.quantileInput.get();
+            quantiles.setValue(state.random.nextInt(quantiles.getDimension()), state.random.nextDouble());
+            clock.requiresRecalculation();
+            clock.getRatesForAllBranches(state.rates);
+            quantiles.setEverythingDirty(false);
+        } else {
+            IntegerParameter categories = clock.categoryInput.get();
+            categories.setValue(state.random.nextInt(categories.getDimension()),
+                    state.random.nextInt(categories.getUpper() + 1));
+            clock.requiresRecalculation();
+            clock.getRatesForAllBranches(state.rates);
+            categories.setEverythingDirty(false);
+        }
+        blackhole.consume(state.rates);
+    }
+
+    /**
+     * Changes every rate quantile and recomputes the rates, which goes through
+     * the batch inverse CDF when fastInverseCDF is true.
+     */
+    @Benchmark
+    public void updateAllQuantiles(QuantileClock state, Blackhole blackhole) {
+        UCRelaxedLineageClockModel clock = state.clock;
+        RealParameter quantiles = clock.quantileInput.get();
+        clock.store();
+        for (int i = 0; i < quantiles.getDimension(); i++) {
+            quantiles.setValue(i, state.random.nextDouble());
+        }
+        clock.requiresRecalculation();
+        clock.getRatesForAllBranches(state.rates);
+        quantiles.setEverythingDirty(false);
+        blackhole.consume(state.rates);
+    }
+
+    @Benchmark
+    public UCRelaxedMultiCladeClockModel multiCladeInitAndValidate(Models models) {
+        return SyntheticModels.createMultiCladeClock(models.tree, models.clades);
+    }
+
+    @Benchmark
+    public void rateStatisticLog(Models models) {
+        // a new sample number so that the statistics are computed every time
+        models.rateStatistic.log(models.random.nextLong() & Long.MAX_VALUE, models.out);
+    }
+}
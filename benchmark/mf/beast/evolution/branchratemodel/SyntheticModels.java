@@ -0,0 +1,175 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Random trees and clock models used by the benchmarks.
+ */
+public class SyntheticModels {
+
+    private final Random random;
+
+    public SyntheticModels(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @return a random coalescent-like tree whose leaves t0, t1, ... are numbered
+     *         first
+     */
+    public Tree createTree(int taxonCount) {
+        List<Node> active = new ArrayList<Node>(taxonCount);
+        for (int i = 0; i < taxonCount; i++) {
+            Node leaf = new Node();
+            leaf.setNr(i);
+            leaf.setID("t" + i);
+            leaf.setHeight(0.0);
+            active.add(leaf);
+        }
+        double height = 0.0;
+        int nodeNr = taxonCount;
+        while (active.size() > 1) {
+            height += random.nextDouble() / active.size();
+            Node left = remove(active, random.nextInt(active.size()));
+            Node right = remove(active, random.nextInt(active.size()));
+            Node parent = new Node();
+            parent.setNr(nodeNr++);
+            parent.setHeight(height);
+            parent.addChild(left);
+            parent.addChild(right);
+            active.add(parent);
+        }
+        return new Tree(active.get(0));
+    }
+
+    private static Node remove(List<Node> nodes, int index) {
+        Node node = nodes.get(index);
+        nodes.set(index, nodes.get(nodes.size() - 1));
+        nodes.remove(nodes.size() - 1);
+        return node;
+    }
+
+    /**
+     * @return up to cladeCount disjoint clades of at most taxonCount /
+     *         (2 * cladeCount) taxa
+     */
+    public List<TaxonSet> createClades(Tree tree, int cladeCount) {
+        int maxSize = Math.max(2, tree.getLeafNodeCount() / (2 * Math.max(cladeCount, 1)));
+        boolean[] used = new boolean[tree.getNodeCount()];
+        List<TaxonSet> clades = new ArrayList<TaxonSet>(cladeCount);
+        for (int attempt = 0; attempt < 100 * cladeCount && clades.size() < cladeCount; attempt++) {
+            Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+            if (node.isRoot() || used[node.getNr()]) {
+                continue;
+            }
+            List<Node> subtree = subtree(node);
+            List<Node> leaves = new ArrayList<Node>();
+            boolean free = true;
+            for (Node n : subtree) {
+                free &= !used[n.getNr()];
+                if (n.isLeaf()) {
+                    leaves.add(n);
+                }
+            }
+            if (!free || leaves.size() > maxSize) {
+                continue;
+            }
+            // block the subtree and the ancestors so that the clades stay disjoint
+            for (Node n : subtree) {
+                used[n.getNr()] = true;
+            }
+            for (Node ancestor = node.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+                used[ancestor.getNr()] = true;
+            }
+            List<Taxon> taxa = new ArrayList<Taxon>(leaves.size());
+            for (Node leaf : leaves) {
+                taxa.add(new Taxon(leaf.getID()));
+            }
+            TaxonSet taxonSet = new TaxonSet(taxa);
+            taxonSet.setID("clade" + clades.size());
+            clades.add(taxonSet);
+        }
+        return clades;
+    }
+
+    // node and its descendants, without recursion so that deep trees cannot
+    // overflow the stack
+    private static List<Node> subtree(Node node) {
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(node);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.addAll(nodes.get(i).getChildren());
+        }
+        return nodes;
+    }
+
+    public static LogNormalDistributionModel createDistribution() {
+        LogNormalDistributionModel distribution = new LogNormalDistributionModel();
+        distribution.initByName("M", new RealParameter("1.0"), "S", new RealParameter("0.5"), "meanInRealSpace",
+                true);
+        return distribution;
+    }
+
+    /**
+     * @param quantiles true to use rate quantiles, false to use rate categories
+     */
+    public static UCRelaxedLineageClockModel createLineageClock(Tree tree, boolean quantiles, boolean normalize) {
+        return createLineageClock(tree, quantiles, normalize, false);
+    }
+
+    /**
+     * @param quantiles      true to use rate quantiles, false to use rate categories
+     * @param fastInverseCDF true to use the closed form of the inverse CDF
+     */
+    public static UCRelaxedLineageClockModel createLineageClock(Tree tree, boolean quantiles, boolean normalize,
+            boolean fastInverseCDF) {
+        UCRelaxedLineageClockModel clock = new UCRelaxedLineageClockModel();
+        clock.initByName("tree", tree, "distr", createDistribution(),
+                quantiles ? "rateQuantiles" : "rateCategories",
+                quantiles ? new RealParameter("0.5") : new IntegerParameter("0"), "normalize", normalize,
+                "fastInverseCDF", fastInverseCDF);
+        return clock;
+    }
+
+    public static UCRelaxedMultiCladeClockModel createMultiCladeClock(Tree tree, List<TaxonSet> taxonSets) {
+        List<Clade> clades = new ArrayList<Clade>(taxonSets.size());
+        for (TaxonSet taxonSet : taxonSets) {
+            Clade clade = new Clade();
+            clade.initByName("taxonset", taxonSet, "includeStem", true);
+            clades.add(clade);
+        }
+        UCRelaxedMultiCladeClockModel clock = new UCRelaxedMultiCladeClockModel();
+        clock.initByName("tree", tree, "distr", createDistribution(), "rateCategories", new IntegerParameter("0"),
+                "clade", clades);
+        return clock;
+    }
+
+    /**
+     * @return a flexible local clock with a relaxed root clock and one relaxed
+     *         clock per clade
+     */
+    public static FlexibleLocalClockModel createFlexibleLocalClock(Tree tree, List<TaxonSet> taxonSets) {
+        List<CladeRateModel> cladeClocks = new ArrayList<CladeRateModel>(taxonSets.size());
+        for (TaxonSet taxonSet : taxonSets) {
+            UCRelaxedCladeClockModel cladeClock = new UCRelaxedCladeClockModel();
+            cladeClock.initByName("tree", tree, "distr", createDistribution(), "rateCategories",
+                    new IntegerParameter("0"), "taxonset", taxonSet, "includeStem", true);
+            cladeClock.setID(taxonSet.getID() + ".clock");
+            cladeClocks.add(cladeClock);
+        }
+        FlexibleLocalClockModel clock = new FlexibleLocalClockModel();
+        clock.initByName("tree", tree, "rootClockModel", createLineageClock(tree, false, false), "cladeClockModel",
+                cladeClocks);
+        return clock;
+    }
+}
@@ -21,7 +21,8 @@ import org.apache.commons.math.MathException;
 @Description("Defines an uncorrelated relaxed molecular clock.")
 @Citation(value = "Drummond AJ, Ho SYW, Phillips MJ, Rambaut A (2006) Relaxed Phylogenetics and\n"
         + "  Dating with Confidence. PLoS Biol 4(5): e88", DOI = "10.1371/journal.pbio.0040088", year = 2006, firstAuthorSurname = "drummond")
-public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
+public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base
+        implements BranchRateGradient, ClockMetricsSource {
 
     public Input<ParametricDistribution> rateDistInput = new Input<ParametricDistribution>("distr",
             "the distribution governing the rates among branches. Must have mean of 1. The clock.rate parameter can be used to change the mean rate.",
@@ -42,6 +43,15 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
             Input.Validate.REQUIRED);
     public Input<Boolean> normalizeInput = new Input<Boolean>("normalize",
             "Whether to normalize the average rate (default false).", false);
+    public Input<Boolean> fastInverseCDFInput = new Input<Boolean>("fastInverseCDF",
+            "Whether to approximate the inverse CDF of LogNormal, Exponential and Gamma rate distributions with closed forms or interpolated tables (default false).",
+            false);
+    public Input<Double> inverseCDFToleranceInput = new Input<Double>("inverseCDFTolerance",
+            "maximum relative error of the interpolated inverse CDF used when fastInverseCDF=true (default 1e-6).",
+            1e-6);
+    public Input<Boolean> cacheRateTablesInput = new Input<Boolean>("cacheRateTables",
+            "Whether to share the rates of the rate categories between clocks and states with the same rate distribution parameters (default true). Only used with rateCategories.",
+            true);
 
     private Function meanRate;
 
@@ -50,21 +60,81 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
     // true if quantiles are used, false if discrete rate categories are used.
     boolean usingQuantiles;
 
-    private int branchCount;
-
     protected abstract int getCategoryIndex(int nodeNumber);
 
+    // category index of the node in the stored state
+    protected abstract int getStoredCategoryIndex(int nodeNumber);
+
     protected abstract int getAssignedBranchCount();
 
     @Override
     public void initAndValidate() {
 
         tree = treeInput.get();
-        branchCount = tree.getNodeCount() - 1;
 
         categories = categoryInput.get();
         usingQuantiles = (categories == null);
 
+        initRateSlots();
+
+        distribution = rateDistInput.get();
+
+        quantileGradient = QuantileGradient.create(distribution);
+
+        fastInverseCDF = null;
+        if (fastInverseCDFInput.get()) {
+            fastInverseCDF = FastInverseCDF.create(distribution, inverseCDFToleranceInput.get());
+            if (fastInverseCDF == null) {
+                Log.warning.println("WARNING: fastInverseCDF is not available for " + distribution.getClass().getName()
+                        + ", using the exact inverse CDF.");
+            }
+        }
+
+        rateTableKeys = null;
+        if (!usingQuantiles && cacheRateTablesInput.get()) {
+            rateTableKeys = RateTableCache.keyBuilder(distribution,
+                    fastInverseCDF == null ? 0.0 : inverseCDFToleranceInput.get());
+        }
+
+        rateSnapshots = new RateSnapshot[] { new RateSnapshot(new double[tree.getNodeCount()]),
+                new RateSnapshot(new double[tree.getNodeCount()]) };
+        snapshot = null;
+        storedSnapshot = null;
+
+        normalize = normalizeInput.get();
+        if (normalize) {
+            int nodeCount = tree.getNodeCount();
+            branchSlot = new int[nodeCount];
+            storedBranchSlot = new int[nodeCount];
+            branchRateLength = new double[nodeCount];
+            storedBranchRateLength = new double[nodeCount];
+            branchLength = new double[nodeCount];
+            storedBranchLength = new double[nodeCount];
+            dirtySlots = new boolean[nodeCount];
+            fullNormalization = true;
+        }
+
+        meanRate = meanRateInput.get();
+        if (meanRate == null) {
+            meanRate = new RealParameter("1.0");
+        }
+
+        try {
+            double mean = rateDistInput.get().getMean();
+            if (Math.abs(mean - 1.0) > 1e-6) {
+                Log.warning.println("WARNING: mean of distribution for relaxed clock model is not 1.0.");
+            }
+        } catch (RuntimeException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Sizes the rate categories (or quantiles) for getAssignedBranchCount()
+     * branches and draws their initial values. Called again by subclasses whose
+     * number of branches is only known once the branches are assigned.
+     */
+    protected void initRateSlots() {
         int assignedBranchCount = getAssignedBranchCount();
 
         if (!usingQuantiles) {
@@ -106,28 +176,21 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
             categories.setUpper(LATTICE_SIZE_FOR_DISCRETIZED_RATES - 1);
         }
 
-        distribution = rateDistInput.get();
-
         if (!usingQuantiles) {
             // rates are initially zero and are computed by getRawRate(int i) as needed
             rates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
             storedRates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
+        } else {
+            // rates of the branches, NaN until computed by getRawRateForQuantile
+            quantileRates = new double[assignedBranchCount];
+            storedQuantileRates = new double[assignedBranchCount];
+            Arrays.fill(quantileRates, Double.NaN);
         }
-        normalize = normalizeInput.get();
-
-        meanRate = meanRateInput.get();
-        if (meanRate == null) {
-            meanRate = new RealParameter("1.0");
-        }
-
-        try {
-            double mean = rateDistInput.get().getMean();
-            if (Math.abs(mean - 1.0) > 1e-6) {
-                Log.warning.println("WARNING: mean of distribution for relaxed clock model is not 1.0.");
-            }
-        } catch (RuntimeException e) {
-            // ignore
-        }
+        recompute = true;
+        renormalize = true;
+        fullNormalization = true;
+        snapshot = null;
+        storedSnapshot = null;
     }
 
     public double getRateForBranch(Node node) {
@@ -135,106 +198,432 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
             // root has no rate
             return 1;
         }
+        return getRates().branchRates[node.getNr()];
+    }
 
-        if (recompute) {
-            // this must be synchronized to avoid being called simultaneously by
-            // two different likelihood threads
+    public void getRatesForAllBranches(double[] rates) {
+        double[] branchRates = getRates().branchRates;
+        System.arraycopy(branchRates, 0, rates, 0, branchRates.length);
+    }
+
+    /**
+     * The rates are computed once per state by the first thread that asks for
+     * them and published as a snapshot, so that likelihood threads only
+     * synchronize when the snapshot is missing. A snapshot is not written to
+     * while it is published or stored.
+     */
+    private RateSnapshot getRates() {
+        RateSnapshot current = snapshot;
+        if (current == null) {
             synchronized (this) {
-                prepare();
-                recompute = false;
+                current = snapshot;
+                if (current == null) {
+                    current = computeRates();
+                    snapshot = current;
+                }
             }
         }
+        return current;
+    }
+
+    private RateSnapshot computeRates() {
+        if (recompute) {
+            prepare();
+            recompute = false;
+        } else if (updateInverseCDF) {
+            updateInverseCDF();
+        }
+
+        if (usingQuantiles && fastInverseCDF != null) {
+            computeQuantileRates();
+        }
 
         if (renormalize) {
             if (normalize) {
-                synchronized (this) {
-                    computeFactor();
-                }
+                computeFactor();
             }
             renormalize = false;
         }
 
-        return getRawRate(node) * scaleFactor * meanRate.getArrayValue();
+        if (newRates) {
+            // the rates of a lineage clock are reallocated when its number of
+            // branches is set, the key is then out of date
+            if (rateTableKey != null && rateTableKey.getCategoryCount() == rates.length) {
+                RateTableCache.put(rateTableKey, rates);
+            }
+            newRates = false;
+        }
+
+        // the stored state keeps its snapshot, the other one is filled again
+        RateSnapshot next = storedSnapshot == rateSnapshots[0] ? rateSnapshots[1] : rateSnapshots[0];
+        double[] branchRates = next.branchRates;
+        double mean = meanRate.getArrayValue();
+        for (int i = 0; i < branchRates.length; i++) {
+            int index = getCategoryIndex(i);
+            if (tree.getNode(i).isRoot()) {
+                // root has no rate
+                branchRates[i] = 1;
+            } else if (index == -1) {
+                // not a branch of this clock
+                branchRates[i] = Double.NaN;
+            } else {
+                branchRates[i] = getRawRate(index) * scaleFactor * mean;
+            }
+        }
+        return next;
     }
 
     /**
-     * Computes a scale factor for normalization. Only called if normalize=true.
+     * @return true if the rate of the branch above the node changed since the
+     *         last store(), either because the branch was reassigned or its
+     *         category or quantile changed, or because all the rates changed
      */
-    private void computeFactor() {
+    public boolean isBranchDirty(int nodeNr) {
+        int index = getCategoryIndex(nodeNr);
+        if (index != getStoredCategoryIndex(nodeNr)) {
+            return true;
+        }
+        if (index == -1) {
+            return false;
+        }
+        if (allBranchesDirty) {
+            return true;
+        }
+        return usingQuantiles ? quantiles.isDirty(index) : categories.isDirty(index);
+    }
 
-        // scale mean rate to 1.0 or separate parameter
+    /**
+     * Sets the first entries of dirtyNodeNrs to the numbers of the nodes whose
+     * branch rate changed since the last store().
+     *
+     * @return the number of such nodes
+     */
+    public int getDirtyBranches(int[] dirtyNodeNrs) {
+        int count = 0;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            if (!tree.getNode(i).isRoot() && isBranchDirty(i)) {
+                dirtyNodeNrs[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gradient with respect to the rate quantiles, the mean rate (clock.rate) or a
+     * parameter of a LogNormal, Gamma or Exponential rate distribution. Rate
+     * categories are discrete, so only the gradients with respect to the mean
+     * rate and the distribution parameters are available with categories. With
+     * normalize=true the derivatives of the scale factor are included.
+     */
+    @Override
+    public void addGradient(double[] branchGradient, Function parameter, double[] gradient) {
+        if (parameter == null) {
+            return;
+        }
+        if (!usingQuantiles && parameter == categories) {
+            throw new IllegalArgumentException("Rate categories are discrete, use rateQuantiles for gradients");
+        }
+        boolean quantileDerivative = usingQuantiles && parameter == quantiles;
+        boolean meanRateDerivative = parameter == meanRateInput.get();
+        if (!quantileDerivative && !meanRateDerivative && !quantileGradient.dependsOn(parameter)) {
+            return;
+        }
 
-        double treeRate = 0.0;
-        double treeTime = 0.0;
+        // brings the raw rates and the scale factor up to date
+        getRates();
+        double mean = meanRate.getArrayValue();
+
+        // rate = mean * scaleFactor * x with x the raw rate, and with normalization
+        // scaleFactor = sum(t) / sum(x t) over the branches of the clock
+        double gx = 0.0;
+        double xt = 0.0;
+        double gdx = 0.0;
+        double tdx = 0.0;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Node node = tree.getNode(i);
+            int index = node.isRoot() ? -1 : getCategoryIndex(i);
+            if (index == -1) {
+                continue;
+            }
+            double x = getRawRate(index);
+            double t = node.getLength();
+            gx += branchGradient[i] * x;
+            xt += x * t;
+            if (!quantileDerivative && !meanRateDerivative) {
+                double dx;
+                try {
+                    dx = quantileGradient.getDerivative(getProbability(index), x, parameter);
+                } catch (MathException e) {
+                    throw new RuntimeException("Failed to compute the derivative of the inverse cumulative probability!");
+                }
+                gdx += branchGradient[i] * dx;
+                tdx += t * dx;
+            }
+        }
 
-        if (!usingQuantiles) {
+        if (meanRateDerivative) {
+            gradient[0] += scaleFactor * gx;
+        } else if (quantileDerivative) {
+            // dx/dq = 1 / f(x), the scale factor changes by -scaleFactor * t dx / sum(x t)
             for (int i = 0; i < tree.getNodeCount(); i++) {
                 Node node = tree.getNode(i);
-                if (!node.isRoot()) {
-                    treeRate += getRawRateForCategory(node) * node.getLength();
-                    treeTime += node.getLength();
+                int index = node.isRoot() ? -1 : getCategoryIndex(i);
+                if (index == -1) {
+                    continue;
+                }
+                double dx = 1.0 / distribution.density(getRawRate(index));
+                double derivative = branchGradient[i];
+                if (normalize) {
+                    derivative -= node.getLength() * gx / xt;
                 }
+                gradient[index] += mean * scaleFactor * derivative * dx;
             }
         } else {
+            double derivative = gdx;
+            if (normalize) {
+                derivative -= gx * tdx / xt;
+            }
+            gradient[0] += mean * scaleFactor * derivative;
+        }
+    }
+
+    // probability whose quantile is the raw rate of the index-th branch
+    private double getProbability(int index) {
+        if (usingQuantiles) {
+            return quantiles.getValue(index);
+        }
+        return (categories.getValue(index) + 0.5) / rates.length;
+    }
+
+    /**
+     * @return the index of the branch above the node in the rate categories (or
+     *         quantiles), -1 if the branch does not belong to this clock
+     */
+    public int getSlot(int nodeNr) {
+        return getCategoryIndex(nodeNr);
+    }
+
+    /**
+     * Sets the first entries of nodeNrs to the numbers of the nodes whose branch
+     * belongs to this clock.
+     *
+     * @return the number of such nodes
+     */
+    public int getAssignedBranches(int[] nodeNrs) {
+        int count = 0;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            if (!tree.getNode(i).isRoot() && getCategoryIndex(i) != -1) {
+                nodeNrs[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Discards the rates of the current state. Must be called by subclasses when
+     * the assignment of the branches changes.
+     */
+    protected void invalidateRates() {
+        snapshot = null;
+        renormalize = true;
+        if (normalize) {
+            allBranchesDirty = true;
+        }
+    }
+
+    @Override
+    public ClockMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ClockMetrics(ClockMetrics.Counter.INVERSE_CDF, ClockMetrics.Counter.RATE_CACHE_HIT,
+                    ClockMetrics.Counter.RATE_CACHE_MISS, ClockMetrics.Counter.PREPARE,
+                    ClockMetrics.Counter.COMPUTE_FACTOR);
+        }
+        return metrics;
+    }
+
+    /**
+     * Computes a scale factor for normalization. Only called if normalize=true.
+     * The sums of rate * length and length are only updated for the branches
+     * whose slot, rate or length changed since the last call.
+     */
+    private void computeFactor() {
+        ClockEvents.ComputeFactor event = new ClockEvents.ComputeFactor();
+        event.begin();
+        long start = ClockMetrics.start(metrics);
+        int changedCount = 0;
+
+        // scale mean rate to 1.0 or separate parameter
+
+        boolean full = fullNormalization || ++incrementalNormalizations >= FULL_NORMALIZATION_INTERVAL;
+        if (full) {
+            // start from scratch from time to time so rounding errors do not build up
+            Arrays.fill(branchSlot, -1);
+            Arrays.fill(branchRateLength, 0.0);
+            Arrays.fill(branchLength, 0.0);
+            treeRate = 0.0;
+            treeTime = 0.0;
+            for (int i = 0; i < tree.getNodeCount(); i++) {
+                updateBranch(tree.getNode(i));
+            }
+            changedCount = tree.getNodeCount();
+            fullNormalization = false;
+            incrementalNormalizations = 0;
+        } else {
+            // lengths are compared with the ones in the sums rather than taken from
+            // the dirty flags of the nodes, as the rates may not have been asked for
+            // in the steps since the last call
             for (int i = 0; i < tree.getNodeCount(); i++) {
                 Node node = tree.getNode(i);
-                if (!node.isRoot()) {
-                    treeRate += getRawRateForQuantile(node) * node.getLength();
-                    treeTime += node.getLength();
+                int index = node.isRoot() ? -1 : getCategoryIndex(i);
+                if (index != branchSlot[i]
+                        || (index != -1 && (dirtySlots[index] || branchLength[i] != node.getLength()))) {
+                    updateBranch(node);
+                    changedCount++;
                 }
             }
         }
+        Arrays.fill(dirtySlots, false);
 
         scaleFactor = 1.0 / (treeRate / treeTime);
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.COMPUTE_FACTOR, start);
+        if (event.shouldCommit()) {
+            event.set(tree.getNodeCount(), 1, changedCount);
+            event.full = full;
+            event.commit();
+        }
+    }
+
+    // replaces the contribution of the branch above node to the sums
+    private void updateBranch(Node node) {
+        int nodeNr = node.getNr();
+        int index = node.isRoot() ? -1 : getCategoryIndex(nodeNr);
+        treeRate -= branchRateLength[nodeNr];
+        treeTime -= branchLength[nodeNr];
+        branchSlot[nodeNr] = index;
+        if (index == -1) {
+            branchRateLength[nodeNr] = 0.0;
+            branchLength[nodeNr] = 0.0;
+        } else {
+            branchLength[nodeNr] = node.getLength();
+            branchRateLength[nodeNr] = getRawRate(index) * branchLength[nodeNr];
+            treeRate += branchRateLength[nodeNr];
+            treeTime += branchLength[nodeNr];
+        }
     }
 
-    private double getRawRate(Node node) {
+    private double getRawRate(int index) {
         if (usingQuantiles) {
-            return getRawRateForQuantile(node);
+            return getRawRateForQuantile(index);
         }
-        return getRawRateForCategory(node);
+        return getRawRateForCategory(index);
     }
 
     /**
-     * @param node the node to get the rate of
+     * @param index the index of the branch in the rate categories
      * @return the rate of the branch
      */
-    private double getRawRateForCategory(Node node) {
+    private double getRawRateForCategory(int index) {
 
-        int nodeNumber = node.getNr();
-        if (nodeNumber == branchCount) {
-            // root node has nr less than #categories, so use that nr
-            nodeNumber = node.getTree().getRoot().getNr();
-        }
-
-        int category = categories.getValue(getCategoryIndex(nodeNumber));
+        int category = categories.getValue(index);
 
         if (rates[category] == 0.0) {
+            ClockMetrics.increment(metrics, ClockMetrics.Counter.RATE_CACHE_MISS);
+            newRates = true;
             try {
-                rates[category] = distribution.inverseCumulativeProbability((category + 0.5) / rates.length);
+                rates[category] = inverseCumulativeProbability((category + 0.5) / rates.length);
             } catch (MathException e) {
                 throw new RuntimeException("Failed to compute inverse cumulative probability!");
             }
+        } else {
+            ClockMetrics.increment(metrics, ClockMetrics.Counter.RATE_CACHE_HIT);
         }
         return rates[category];
     }
 
-    private double getRawRateForQuantile(Node node) {
+    private double getRawRateForQuantile(int index) {
 
-        int nodeNumber = node.getNr();
-        if (nodeNumber == branchCount) {
-            // root node has nr less than #categories, so use that nr
-            nodeNumber = node.getTree().getRoot().getNr();
+        // NaN marks a rate that needs to be recomputed
+        if (Double.isNaN(quantileRates[index])) {
+            ClockMetrics.increment(metrics, ClockMetrics.Counter.RATE_CACHE_MISS);
+            try {
+                quantileRates[index] = inverseCumulativeProbability(quantiles.getValue(index));
+            } catch (MathException e) {
+                throw new RuntimeException("Failed to compute inverse cumulative probability!");
+            }
+        } else {
+            ClockMetrics.increment(metrics, ClockMetrics.Counter.RATE_CACHE_HIT);
+        }
+        return quantileRates[index];
+    }
+
+    /**
+     * Computes all the missing quantile rates in one pass of the fast inverse
+     * CDF, which is much faster than computing them one at a time when a
+     * parameter of the distribution or many quantiles changed.
+     */
+    private void computeQuantileRates() {
+        int count = 0;
+        for (int i = 0; i < quantileRates.length; i++) {
+            if (Double.isNaN(quantileRates[i])) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (batchSlots == null || batchSlots.length < quantileRates.length) {
+            batchSlots = new int[quantileRates.length];
+            batchProbabilities = new double[quantileRates.length];
+            batchRates = new double[quantileRates.length];
         }
 
+        count = 0;
+        for (int i = 0; i < quantileRates.length; i++) {
+            if (Double.isNaN(quantileRates[i])) {
+                batchSlots[count] = i;
+                batchProbabilities[count] = quantiles.getValue(i);
+                count++;
+            }
+        }
+        long start = ClockMetrics.start(metrics);
         try {
-            return distribution.inverseCumulativeProbability(quantiles.getValue(getCategoryIndex(nodeNumber)));
+            fastInverseCDF.inverseCumulativeProbabilities(batchProbabilities, batchRates, count);
         } catch (MathException e) {
             throw new RuntimeException("Failed to compute inverse cumulative probability!");
         }
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.INVERSE_CDF, start, count);
+        for (int k = 0; k < count; k++) {
+            quantileRates[batchSlots[k]] = batchRates[k];
+        }
+    }
+
+    private double inverseCumulativeProbability(double p) throws MathException {
+        long start = ClockMetrics.start(metrics);
+        double x;
+        if (fastInverseCDF != null) {
+            x = fastInverseCDF.inverseCumulativeProbability(p);
+        } else {
+            x = distribution.inverseCumulativeProbability(p);
+        }
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.INVERSE_CDF, start);
+        return x;
+    }
+
+    private void updateInverseCDF() {
+        if (fastInverseCDF != null) {
+            try {
+                fastInverseCDF.update();
+            } catch (MathException e) {
+                throw new RuntimeException("Failed to compute inverse cumulative probability!");
+            }
+        }
+        updateInverseCDF = false;
     }
 
     private void prepare() {
+        ClockEvents.Prepare event = new ClockEvents.Prepare();
+        event.begin();
+        long start = ClockMetrics.start(metrics);
 
         categories = categoryInput.get();
 
@@ -242,32 +631,84 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
 
         distribution = rateDistInput.get();
 
+        updateInverseCDF();
+
         tree = treeInput.get();
 
         if (!usingQuantiles) {
             // rates array initialized to correct length in initAndValidate
-            // here we just reset rates to zero and they are computed by getRawRate(int i)
+            // here we start from the rates cached for the same parameters, if any, or
+            // reset rates to zero, and missing rates are computed by getRawRate(int i)
             // as needed
-            Arrays.fill(rates, 0.0);
+            rateTableKey = rateTableKeys == null ? null : rateTableKeys.build(rates.length);
+            double[] table = rateTableKey == null ? null : RateTableCache.get(rateTableKey);
+            if (table != null) {
+                System.arraycopy(table, 0, rates, 0, rates.length);
+            } else {
+                Arrays.fill(rates, 0.0);
+            }
+            newRates = false;
+        } else {
+            Arrays.fill(quantileRates, Double.NaN);
+        }
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.PREPARE, start);
+        if (event.shouldCommit()) {
+            // every rate is computed again
+            event.set(tree.getNodeCount(), 1, getAssignedBranchCount());
+            event.commit();
         }
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        recompute = false;
-        renormalize = true;
+        // rates are recomputed on demand, recompute and renormalize are only
+        // cleared once they are
+        snapshot = null;
+
+        if (normalize || rateDistInput.get().isDirtyCalculation() || InputUtil.isDirty(meanRateInput)) {
+            // the scale factor, the distribution or the mean rate changes every rate
+            allBranchesDirty = true;
+        }
+
+        if (treeInput.get().somethingIsDirty()) {
+            // branch lengths or the assignment of the branches changed
+            renormalize = true;
+        }
 
         if (rateDistInput.get().isDirtyCalculation()) {
             recompute = true;
+            renormalize = true;
+            fullNormalization = true;
+            distributionChanged = true;
             return true;
         }
         // NOT processed as trait on the tree, so DO mark as dirty
         if (categoryInput.get() != null && categoryInput.get().somethingIsDirty()) {
             // recompute = true;
+            renormalize = true;
+            if (normalize) {
+                IntegerParameter categories = categoryInput.get();
+                for (int i = 0; i < categories.getDimension(); i++) {
+                    if (categories.isDirty(i)) {
+                        dirtySlots[i] = true;
+                    }
+                }
+            }
             return true;
         }
 
         if (quantileInput.get() != null && quantileInput.get().somethingIsDirty()) {
+            // only the rates of the quantiles that changed are recomputed
+            RealParameter quantiles = quantileInput.get();
+            for (int i = 0; i < quantileRates.length; i++) {
+                if (quantiles.isDirty(i)) {
+                    quantileRates[i] = Double.NaN;
+                    if (normalize) {
+                        dirtySlots[i] = true;
+                    }
+                }
+            }
+            renormalize = true;
             return true;
         }
 
@@ -282,8 +723,21 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
     public void store() {
         if (!usingQuantiles)
             System.arraycopy(rates, 0, storedRates, 0, rates.length);
+        else
+            System.arraycopy(quantileRates, 0, storedQuantileRates, 0, quantileRates.length);
 
         storedScaleFactor = scaleFactor;
+        storedRateTableKey = rateTableKey;
+        if (normalize) {
+            System.arraycopy(branchSlot, 0, storedBranchSlot, 0, branchSlot.length);
+            System.arraycopy(branchRateLength, 0, storedBranchRateLength, 0, branchRateLength.length);
+            System.arraycopy(branchLength, 0, storedBranchLength, 0, branchLength.length);
+            storedTreeRate = treeRate;
+            storedTreeTime = treeTime;
+        }
+        storedSnapshot = snapshot;
+        distributionChanged = false;
+        allBranchesDirty = false;
         super.store();
     }
 
@@ -293,12 +747,59 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
             double[] tmp = rates;
             rates = storedRates;
             storedRates = tmp;
+        } else {
+            double[] tmp = quantileRates;
+            quantileRates = storedQuantileRates;
+            storedQuantileRates = tmp;
         }
         scaleFactor = storedScaleFactor;
+        rateTableKey = storedRateTableKey;
+        newRates = false;
+        if (normalize) {
+            int[] tmpSlot = branchSlot;
+            branchSlot = storedBranchSlot;
+            storedBranchSlot = tmpSlot;
+            double[] tmp = branchRateLength;
+            branchRateLength = storedBranchRateLength;
+            storedBranchRateLength = tmp;
+            tmp = branchLength;
+            branchLength = storedBranchLength;
+            storedBranchLength = tmp;
+            treeRate = storedTreeRate;
+            treeTime = storedTreeTime;
+            Arrays.fill(dirtySlots, false);
+        }
+        allBranchesDirty = false;
+        // the stored snapshot was not written to, so it can be published again
+        snapshot = storedSnapshot;
+        if (snapshot == null) {
+            // the stored state may not have been normalized
+            renormalize = true;
+            fullNormalization = true;
+        }
+        if (distributionChanged) {
+            // the approximation still uses the parameters of the rejected state
+            updateInverseCDF = true;
+            distributionChanged = false;
+        }
         super.restore();
     }
 
+    // Rates of the branches indexed by node number, NaN for the branches that
+    // are not assigned to this clock and 1 for the root
+    private static final class RateSnapshot {
+        final double[] branchRates;
+
+        RateSnapshot(double[] branchRates) {
+            this.branchRates = branchRates;
+        }
+    }
+
     ParametricDistribution distribution;
+    FastInverseCDF fastInverseCDF;
+    private QuantileGradient quantileGradient;
+    // null until enableMetrics() is called, before the chain starts
+    private ClockMetrics metrics;
     IntegerParameter categories;
     RealParameter quantiles;
     Tree tree;
@@ -306,10 +807,48 @@ public abstract class AbstractUCRelaxedClockModel extends BranchRateModel.Base {
     private boolean normalize = false;
     private boolean recompute = true;
     private boolean renormalize = true;
+    private boolean distributionChanged = false;
+    private boolean updateInverseCDF = false;
+    private boolean allBranchesDirty = false;
+
+    private volatile RateSnapshot snapshot;
+    private RateSnapshot storedSnapshot;
+    // the two snapshots that snapshot and storedSnapshot take turns to use
+    private RateSnapshot[] rateSnapshots;
 
     protected double[] rates;
     protected double[] storedRates;
+    protected double[] quantileRates;
+    protected double[] storedQuantileRates;
+    // scratch arrays of computeQuantileRates
+    private int[] batchSlots;
+    private double[] batchProbabilities;
+    private double[] batchRates;
+    // key of rates in RateTableCache, and true if rates has entries that are not
+    // in the cache yet
+    private RateTableCache.KeyBuilder rateTableKeys;
+    private RateTableCache.Key rateTableKey;
+    private RateTableCache.Key storedRateTableKey;
+    private boolean newRates = false;
     private double scaleFactor = 1.0;
     private double storedScaleFactor = 1.0;
 
-}
\ No newline at end of file
+    // running sums of rate * length and length used for normalization, and the
+    // slot, rate * length and length of every branch that were added to them
+    private static final int FULL_NORMALIZATION_INTERVAL = 1000;
+    private double treeRate;
+    private double treeTime;
+    private double storedTreeRate;
+    private double storedTreeTime;
+    private int[] branchSlot;
+    private int[] storedBranchSlot;
+    private double[] branchRateLength;
+    private double[] storedBranchRateLength;
+    private double[] branchLength;
+    private double[] storedBranchLength;
+    // slots whose category or quantile changed since the last normalization
+    private boolean[] dirtySlots;
+    private boolean fullNormalization = true;
+    private int incrementalNormalizations = 0;
+
+}
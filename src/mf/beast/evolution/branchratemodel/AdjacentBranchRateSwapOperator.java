@@ -0,0 +1,43 @@
+package mf.beast.evolution.branchratemodel;
+
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+
+@Description("Swaps the rate categories (or quantiles) of a branch and its parent branch when both belong to "
+        + "the same relaxed clock. Neighbouring branches tend to have similar lengths, so a swap rarely changes "
+        + "the number of substitutions much, and only two branch rates change per proposal.")
+public class AdjacentBranchRateSwapOperator extends BranchRateOperator {
+
+    @Override
+    public double proposal() {
+        int nodeNr = randomBranch();
+        if (nodeNr == -1) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Node parent = clock.treeInput.get().getNode(nodeNr).getParent();
+        if (parent.isRoot()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int slot = clock.getSlot(nodeNr);
+        int parentSlot = clock.getSlot(parent.getNr());
+        // the parent branch is in another clock
+        if (parentSlot == -1) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        if (usingQuantiles()) {
+            double tmp = quantiles.getValue(slot);
+            quantiles.setValue(slot, quantiles.getValue(parentSlot));
+            quantiles.setValue(parentSlot, tmp);
+        } else {
+            int tmp = categories.getValue(slot);
+            if (tmp == categories.getValue(parentSlot)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            categories.setValue(slot, categories.getValue(parentSlot));
+            categories.setValue(parentSlot, tmp);
+        }
+        // a branch picks its parent with the same probability in both directions
+        return 0.0;
+    }
+}
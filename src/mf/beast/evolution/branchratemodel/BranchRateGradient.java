@@ -0,0 +1,22 @@
+package mf.beast.evolution.branchratemodel;
+
+import beast.base.core.Function;
+
+/**
+ * Branch rate model that can compute derivatives with respect to its
+ * parameters, for gradient based samplers. The derivatives are chained with
+ * the derivative of a function of the branch rates (e.g. the log likelihood)
+ * so that the cost is linear in the number of branches.
+ */
+public interface BranchRateGradient {
+
+    /**
+     * Adds to gradient the derivative with respect to every entry of parameter of
+     * a function of the branch rates, given branchGradient[i], the derivative of
+     * the function with respect to the rate of the branch above the node with
+     * number i. Nothing is added if the rates do not depend on parameter.
+     * Entries of branchGradient for the root and for branches that do not belong
+     * to the model must be 0.
+     */
+    public void addGradient(double[] branchGradient, Function parameter, double[] gradient);
+}
@@ -0,0 +1,72 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * Base class of the operators on the rate categories (or quantiles) of a
+ * relaxed clock. Unlike generic parameter operators they only propose changes
+ * to the entries used by the branches of the clock, which matters when the
+ * clock only covers part of the tree in a FlexibleLocalClockModel.
+ */
+@Description("Operator on the rate categories or quantiles of the branches of a relaxed clock.")
+public abstract class BranchRateOperator extends Operator {
+
+    public Input<AbstractUCRelaxedClockModel> clockInput = new Input<AbstractUCRelaxedClockModel>("clock",
+            "relaxed clock whose rate categories or quantiles are changed.", Validate.REQUIRED);
+
+    protected AbstractUCRelaxedClockModel clock;
+    protected IntegerParameter categories;
+    protected RealParameter quantiles;
+
+    // numbers of the nodes of the branches of the clock, filled by
+    // collectBranches
+    protected int[] branches;
+    protected int branchCount;
+
+    @Override
+    public void initAndValidate() {
+        clock = clockInput.get();
+        categories = clock.categoryInput.get();
+        quantiles = clock.quantileInput.get();
+        branches = new int[clock.treeInput.get().getNodeCount()];
+    }
+
+    protected boolean usingQuantiles() {
+        return categories == null;
+    }
+
+    // The branches of a clock change with the topology, so they are collected
+    // again for each proposal
+    protected void collectBranches() {
+        branchCount = clock.getAssignedBranches(branches);
+    }
+
+    /**
+     * @return the number of a node whose branch belongs to the clock, chosen
+     *         uniformly, or -1 if the clock has no branch
+     */
+    protected int randomBranch() {
+        collectBranches();
+        if (branchCount == 0) {
+            return -1;
+        }
+        return branches[Randomizer.nextInt(branchCount)];
+    }
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        List<StateNode> stateNodes = new ArrayList<StateNode>();
+        stateNodes.add(usingQuantiles() ? quantiles : categories);
+        return stateNodes;
+    }
+}
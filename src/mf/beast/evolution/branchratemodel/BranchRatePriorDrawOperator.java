@@ -0,0 +1,38 @@
+package mf.beast.evolution.branchratemodel;
+
+import beast.base.core.Description;
+import beast.base.util.Randomizer;
+
+@Description("Draws the rate category (or quantile) of one branch of a relaxed clock from its uniform prior, "
+        + "given the other branches. Only the branches that belong to the clock are picked, so only one branch "
+        + "rate changes per proposal.")
+public class BranchRatePriorDrawOperator extends BranchRateOperator {
+
+    @Override
+    public double proposal() {
+        int nodeNr = randomBranch();
+        if (nodeNr == -1) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int slot = clock.getSlot(nodeNr);
+
+        if (usingQuantiles()) {
+            quantiles.setValue(slot, Randomizer.nextDouble());
+            return 0.0;
+        }
+
+        // any other category, the current one would not change anything
+        int lower = categories.getLower();
+        int upper = categories.getUpper();
+        if (lower == upper) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int category = categories.getValue(slot);
+        int newCategory = lower + Randomizer.nextInt(upper - lower);
+        if (newCategory >= category) {
+            newCategory++;
+        }
+        categories.setValue(slot, newCategory);
+        return 0.0;
+    }
+}
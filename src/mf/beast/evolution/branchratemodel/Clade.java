@@ -4,6 +4,7 @@ import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
 
 @Description("Defines a simple clade object.")
 public class Clade extends BEASTObject {
@@ -23,4 +24,13 @@ public class Clade extends BEASTObject {
     public final boolean includeStem() {
         return includeStemInput.get();
     }
+
+    /**
+     * @return the node whose descendants are exactly the taxa of this clade
+     * @throws IllegalArgumentException if the clade is not monophyletic in the tree
+     *                                  of mrcaIndex
+     */
+    public Node getMRCA(MRCAIndex mrcaIndex) {
+        return mrcaIndex.getMonophyleticMRCA(getTaxonSet());
+    }
 }
@@ -0,0 +1,250 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Keeps track of the branches of a monophyletic clade so that the rate
+ * categories (or quantiles) of a relaxed clock are given to its branches when
+ * the topology changes. A clade has a fixed range of indices, which its
+ * branches take in the order of their node numbers, so that the index of a
+ * branch only depends on the tree.
+ *
+ * Clades are expected to stay monophyletic (e.g. constrained by a
+ * MonophyleticConstraint). While a clade is not monophyletic its branches
+ * belong to the enclosing clock of the flexible local clock, so they are
+ * mapped to -1 and the indices of the clade stay dormant.
+ */
+public class CladeBranches {
+
+    private final boolean[] isCladeTaxon; // leaf node number -> taxon of the clade
+    private final int taxonCount;
+    private final int leafNr; // any leaf of the clade
+    private final boolean includeStem;
+
+    private int mrcaNr;
+    private int storedMrcaNr;
+    // false while the clade is not monophyletic, its branches then have no index
+    // and every change of topology is checked
+    private boolean monophyletic = true;
+    private boolean storedMonophyletic = true;
+
+    // node numbers of the branches of the clade, in increasing order
+    private int[] members;
+    private int[] storedMembers;
+    private int[] newMembers;
+    private int newMrcaNr;
+    // index of the first branch of the clade
+    private int firstIndex;
+
+    // scratch stack of the traversals, so that deep trees cannot overflow the
+    // call stack
+    private final Node[] stack;
+
+    public CladeBranches(Tree tree, TaxonSet taxonSet, Node mrca, boolean includeStem) {
+        Set<String> taxa = taxonSet.getTaxaNames();
+        // as in FlexibleLocalClockModel the stem of a clade made of a single leaf is
+        // always included
+        this.includeStem = includeStem || taxa.size() == 1;
+        isCladeTaxon = new boolean[tree.getNodeCount()];
+        int anyLeafNr = -1;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Node node = tree.getNode(i);
+            if (node.isLeaf() && taxa.contains(node.getID())) {
+                isCladeTaxon[i] = true;
+                anyLeafNr = i;
+            }
+        }
+        taxonCount = taxa.size();
+        leafNr = anyLeafNr;
+
+        stack = new Node[tree.getNodeCount()];
+        mrcaNr = mrca.getNr();
+        members = new int[tree.getNodeCount()];
+        int branchCount = collect(mrca, members, 0);
+        if (!this.includeStem) {
+            // the MRCA is the first node in preorder
+            System.arraycopy(members, 1, members, 0, branchCount - 1);
+            branchCount--;
+        }
+        members = Arrays.copyOf(members, branchCount);
+        Arrays.sort(members);
+        storedMembers = members.clone();
+        newMembers = new int[branchCount];
+        storedMrcaNr = mrcaNr;
+    }
+
+    public int getBranchCount() {
+        return members.length;
+    }
+
+    public int getMRCANr() {
+        return mrcaNr;
+    }
+
+    /**
+     * Gives the branches of the clade consecutive indices starting at firstIndex,
+     * in the order of their node numbers.
+     */
+    public void assign(int[] map, int firstIndex) {
+        this.firstIndex = firstIndex;
+        for (int i = 0; i < members.length; i++) {
+            map[members[i]] = firstIndex + i;
+        }
+    }
+
+    public void store() {
+        System.arraycopy(members, 0, storedMembers, 0, members.length);
+        storedMrcaNr = mrcaNr;
+        storedMonophyletic = monophyletic;
+    }
+
+    public void restore() {
+        int[] tmp = members;
+        members = storedMembers;
+        storedMembers = tmp;
+        mrcaNr = storedMrcaNr;
+        monophyletic = storedMonophyletic;
+    }
+
+    /**
+     * Patches map (node number -> index) after a change of topology that touched
+     * the branches of at least one of the clades. Nodes that are not in a
+     * monophyletic clade are mapped to -1.
+     *
+     * @param mark scratch array with one entry per node, all false between calls
+     * @return true if map changed
+     */
+    public static boolean update(Tree tree, List<CladeBranches> clades, int[] map, boolean[] mark) {
+        boolean touched = false;
+        for (int j = 0; j < clades.size() && !touched; j++) {
+            touched = !clades.get(j).monophyletic;
+        }
+        for (int i = 0; i < tree.getNodeCount() && !touched; i++) {
+            if ((tree.getNode(i).isDirty() & Tree.IS_FILTHY) != 0) {
+                touched = map[i] != -1;
+                for (int j = 0; j < clades.size() && !touched; j++) {
+                    touched = clades.get(j).mrcaNr == i;
+                }
+            }
+        }
+        if (!touched) {
+            return false;
+        }
+
+        // the branches that left every monophyletic clade lose their index before
+        // the new branches are given theirs, a branch may move between clades
+        for (int j = 0; j < clades.size(); j++) {
+            CladeBranches clade = clades.get(j);
+            clade.monophyletic = clade.collectNewMembers(tree);
+            if (clade.monophyletic) {
+                Arrays.sort(clade.newMembers);
+                for (int i = 0; i < clade.newMembers.length; i++) {
+                    mark[clade.newMembers[i]] = true;
+                }
+            }
+        }
+        boolean changed = false;
+        for (int j = 0; j < clades.size(); j++) {
+            int[] members = clades.get(j).members;
+            for (int i = 0; i < members.length; i++) {
+                if (!mark[members[i]] && map[members[i]] != -1) {
+                    map[members[i]] = -1;
+                    changed = true;
+                }
+            }
+        }
+        for (int j = 0; j < clades.size(); j++) {
+            CladeBranches clade = clades.get(j);
+            if (clade.monophyletic) {
+                for (int i = 0; i < clade.newMembers.length; i++) {
+                    int nodeNr = clade.newMembers[i];
+                    mark[nodeNr] = false;
+                    if (map[nodeNr] != clade.firstIndex + i) {
+                        map[nodeNr] = clade.firstIndex + i;
+                        changed = true;
+                    }
+                }
+                int[] tmp = clade.members;
+                clade.members = clade.newMembers;
+                clade.newMembers = tmp;
+                clade.mrcaNr = clade.newMrcaNr;
+            }
+        }
+        return changed;
+    }
+
+    // Find the MRCA of the clade by walking up from one of its leaves and collect
+    // its branches in newMembers. Returns false if the clade is not monophyletic.
+    private boolean collectNewMembers(Tree tree) {
+        Node node = tree.getNode(leafNr);
+        int count = 1;
+        while (count < taxonCount) {
+            Node parent = node.getParent();
+            if (parent == null) {
+                return false;
+            }
+            for (int i = 0; i < parent.getChildCount(); i++) {
+                Node child = parent.getChild(i);
+                if (child != node) {
+                    int childCount = countCladeTaxa(child);
+                    if (childCount == -1) {
+                        return false;
+                    }
+                    count += childCount;
+                }
+            }
+            node = parent;
+        }
+
+        int branchCount = 0;
+        if (includeStem) {
+            newMembers[branchCount++] = node.getNr();
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            branchCount = collect(node.getChild(i), newMembers, branchCount);
+        }
+        newMrcaNr = node.getNr();
+        return true;
+    }
+
+    // Number of leaves below node, -1 if one of them is not a taxon of the clade
+    private int countCladeTaxa(Node node) {
+        int count = 0;
+        int top = 0;
+        stack[top++] = node;
+        while (top > 0) {
+            Node n = stack[--top];
+            if (n.isLeaf()) {
+                if (!isCladeTaxon[n.getNr()]) {
+                    return -1;
+                }
+                count++;
+            } else {
+                for (int i = 0; i < n.getChildCount(); i++) {
+                    stack[top++] = n.getChild(i);
+                }
+            }
+        }
+        return count;
+    }
+
+    // Append the node numbers of the subtree below node in preorder
+    private int collect(Node node, int[] nodeNrs, int count) {
+        int top = 0;
+        stack[top++] = node;
+        while (top > 0) {
+            Node n = stack[--top];
+            nodeNrs[count++] = n.getNr();
+            for (int i = n.getChildCount() - 1; i >= 0; i--) {
+                stack[top++] = n.getChild(i);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,77 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from clade hashes (see TaxonIndex) to non negative int
+ * values. Lookups do not allocate.
+ */
+public class CladeHashMap {
+
+    private long[] hashes;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public CladeHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * Associates value with hash unless hash already has a value, so the first
+     * clade inserted with a given set of taxa wins.
+     *
+     * @return true if value was inserted
+     */
+    public boolean putIfAbsent(long hash, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be >= 0");
+        }
+        if (2 * (size + 1) > hashes.length) {
+            long[] oldHashes = hashes;
+            int[] oldValues = values;
+            allocate(hashes.length * 2);
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldValues[i] != -1) {
+                    putIfAbsent(oldHashes[i], oldValues[i]);
+                }
+            }
+        }
+        int slot = slot(hash);
+        if (values[slot] != -1) {
+            return false;
+        }
+        hashes[slot] = hash;
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return the value associated with hash, -1 if there is none
+     */
+    public int get(long hash) {
+        return values[slot(hash)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(long hash) {
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (values[slot] != -1 && hashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
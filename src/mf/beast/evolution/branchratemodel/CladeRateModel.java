@@ -13,6 +13,19 @@ public interface CladeRateModel extends BranchRateModel {
 
     public boolean includeStem(int index);
 
+    /**
+     * Sets rates[i] to the rate this model gives to the branch above the node with
+     * number i. The entries of the branches that are not assigned to this model
+     * are unspecified.
+     */
+    public void getRatesForAllBranches(double[] rates);
+
+    /**
+     * @return true if the rate of the branch above the node with number nodeNr
+     *         changed since the last store()
+     */
+    public boolean isBranchDirty(int nodeNr);
+
     public abstract class Base extends BranchRateModel.Base implements CladeRateModel {
 
         public Input<TaxonSet> taxonSetInput = new Input<TaxonSet>("taxonset", "list of taxa", Validate.REQUIRED);
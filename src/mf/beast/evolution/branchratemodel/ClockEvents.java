@@ -0,0 +1,97 @@
+package mf.beast.evolution.branchratemodel;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the clock models, recorded by e.g.
+ * <code>-XX:StartFlightRecording</code>, which cost next to nothing when no
+ * recording runs. The events that can occur at every MCMC step are only
+ * recorded above a threshold of 1 ms by default, which can be lowered in the
+ * JFR settings. The usual pattern is
+ *
+ * <pre>
+ * ClockEvents.Prepare event = new ClockEvents.Prepare();
+ * event.begin();
+ * ...
+ * if (event.shouldCommit()) {
+ *     event.set(treeSize, clockCount, changedBranches);
+ *     event.commit();
+ * }
+ * </pre>
+ */
+final class ClockEvents {
+
+    private ClockEvents() {
+    }
+
+    @Category({ "BEAST", "Flexible Local Clock" })
+    abstract static class ClockEvent extends Event {
+
+        @Label("Tree Size")
+        @Description("Number of nodes of the tree")
+        int treeSize;
+
+        @Label("Clock Count")
+        @Description("Number of clocks of the model")
+        int clockCount;
+
+        @Label("Changed Branches")
+        @Description("Number of branches whose clock, slot or rate was updated")
+        int changedBranches;
+
+        void set(int treeSize, int clockCount, int changedBranches) {
+            this.treeSize = treeSize;
+            this.clockCount = clockCount;
+            this.changedBranches = changedBranches;
+        }
+    }
+
+    @Name("mf.flc.UpdateNodeIndex")
+    @Threshold("1 ms")
+    @Label("Update Node Index")
+    @Description("Incremental update of the clock assignment of a flexible local clock after a change of topology")
+    static final class UpdateNodeIndex extends ClockEvent {
+    }
+
+    @Name("mf.flc.Prepare")
+    @Threshold("1 ms")
+    @Label("Prepare Rates")
+    @Description("Reset of the rates of a relaxed clock after a change of its rate distribution")
+    static final class Prepare extends ClockEvent {
+    }
+
+    @Name("mf.flc.ComputeFactor")
+    @Threshold("1 ms")
+    @Label("Compute Normalization Factor")
+    @Description("Update of the normalization factor of a relaxed clock")
+    static final class ComputeFactor extends ClockEvent {
+
+        @Label("Full")
+        @Description("True if the sums were recomputed from scratch")
+        boolean full;
+    }
+
+    @Name("mf.flc.InitializeNodeAssignment")
+    @Label("Initialize Node Assignment")
+    @Description("Assignment of the branches of the root clock of a flexible local clock to a relaxed lineage clock")
+    static final class InitializeNodeAssignment extends ClockEvent {
+
+        @Label("Initial")
+        @Description("True for the first assignment, false if it was patched after a change of topology or placement")
+        boolean initial;
+    }
+
+    @Name("mf.flc.RateStatisticLog")
+    @Label("Rate Statistic Log")
+    @Description("Computation and logging of the statistics of the clocks of a flexible local clock")
+    static final class RateStatisticLog extends ClockEvent {
+
+        @Label("Sample")
+        long sample;
+    }
+}
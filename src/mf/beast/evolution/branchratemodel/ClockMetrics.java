@@ -0,0 +1,102 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the work done by a clock model. Each counter has a number of
+ * calls and, if it is timed, the cumulative nanoseconds spent in them. The
+ * counters are LongAdders, so likelihood threads that update them at the same
+ * time do not contend on a single cache line.
+ * <p>
+ * The models only create their metrics when a ClockMetricsLogger asks for them,
+ * until then the instrumentation is a null check.
+ */
+public class ClockMetrics {
+
+    public enum Counter {
+        INVERSE_CDF("inverseCDF", true),
+        RATE_CACHE_HIT("rateCacheHit", false),
+        RATE_CACHE_MISS("rateCacheMiss", false),
+        PREPARE("prepare", true),
+        COMPUTE_FACTOR("computeFactor", true),
+        UPDATE_NODE_INDEX("updateNodeIndex", true),
+        INITIALIZE_NODE_ASSIGNMENT("initializeNodeAssignment", true),
+        CLOCK_STATISTICS("clockStatistics", true);
+
+        public final String label;
+        public final boolean timed;
+
+        Counter(String label, boolean timed) {
+            this.label = label;
+            this.timed = timed;
+        }
+    }
+
+    private final Counter[] counters;
+    private final LongAdder[] counts = new LongAdder[Counter.values().length];
+    private final LongAdder[] nanos = new LongAdder[Counter.values().length];
+
+    /**
+     * @param counters the counters updated by the model
+     */
+    public ClockMetrics(Counter... counters) {
+        this.counters = counters.clone();
+        for (Counter counter : counters) {
+            counts[counter.ordinal()] = new LongAdder();
+            nanos[counter.ordinal()] = new LongAdder();
+        }
+    }
+
+    public Counter[] getCounters() {
+        return counters.clone();
+    }
+
+    public long getCount(Counter counter) {
+        return counts[counter.ordinal()].sum();
+    }
+
+    public long getNanos(Counter counter) {
+        return nanos[counter.ordinal()].sum();
+    }
+
+    public void increment(Counter counter) {
+        counts[counter.ordinal()].increment();
+    }
+
+    /**
+     * @return start time for stop(), 0 if metrics is null
+     */
+    public static long start(ClockMetrics metrics) {
+        return metrics == null ? 0L : System.nanoTime();
+    }
+
+    /**
+     * Counts a call that began at start. Does nothing if metrics is null.
+     */
+    public static void stop(ClockMetrics metrics, Counter counter, long start) {
+        if (metrics != null) {
+            metrics.counts[counter.ordinal()].increment();
+            metrics.nanos[counter.ordinal()].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts count calls made in a batch that began at start. Does nothing if
+     * metrics is null.
+     */
+    public static void stop(ClockMetrics metrics, Counter counter, long start, int count) {
+        if (metrics != null) {
+            metrics.counts[counter.ordinal()].add(count);
+            metrics.nanos[counter.ordinal()].add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts a call without timing it. Does nothing if metrics is null.
+     */
+    public static void increment(ClockMetrics metrics, Counter counter) {
+        if (metrics != null) {
+            metrics.increment(counter);
+        }
+    }
+}
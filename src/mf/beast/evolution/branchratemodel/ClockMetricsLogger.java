@@ -0,0 +1,89 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+
+/**
+ * Logs, for every counter of every model, the number of calls and the
+ * nanoseconds spent in them since the previous sample. Nothing is counted by
+ * the models unless they are logged by a ClockMetricsLogger.
+ */
+@Description("Logs how often the relaxed clocks, flexible local clocks and rate statistics evaluate inverse CDFs, "
+        + "hit their rate caches, normalize and rebuild the clock assignment, and the time spent doing so, "
+        + "per logging interval.")
+public class ClockMetricsLogger extends BEASTObject implements Loggable {
+
+    public Input<List<ClockMetricsSource>> modelInput = new Input<List<ClockMetricsSource>>("model",
+            "relaxed clock, flexible local clock or FLCRateStatistic whose work is counted.",
+            new ArrayList<ClockMetricsSource>(), Validate.REQUIRED);
+
+    private ClockMetrics[] metrics;
+    // values at the previous sample, in column order
+    private long[] previous;
+
+    @Override
+    public void initAndValidate() {
+        List<ClockMetricsSource> models = modelInput.get();
+        metrics = new ClockMetrics[models.size()];
+        int columnCount = 0;
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = models.get(i).enableMetrics();
+            for (ClockMetrics.Counter counter : metrics[i].getCounters()) {
+                columnCount += counter.timed ? 2 : 1;
+            }
+        }
+        previous = new long[columnCount];
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        List<ClockMetricsSource> models = modelInput.get();
+        int column = 0;
+        for (int i = 0; i < metrics.length; i++) {
+            String id = ((BEASTInterface) models.get(i)).getID();
+            if (id == null) {
+                id = "";
+            }
+            for (ClockMetrics.Counter counter : metrics[i].getCounters()) {
+                out.print(id + "." + counter.label + "\t");
+                previous[column++] = metrics[i].getCount(counter);
+                if (counter.timed) {
+                    out.print(id + "." + counter.label + ".ns\t");
+                    previous[column++] = metrics[i].getNanos(counter);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        int column = 0;
+        for (ClockMetrics model : metrics) {
+            for (ClockMetrics.Counter counter : model.getCounters()) {
+                column = logDelta(model.getCount(counter), column, out);
+                if (counter.timed) {
+                    column = logDelta(model.getNanos(counter), column, out);
+                }
+            }
+        }
+    }
+
+    private int logDelta(long value, int column, PrintStream out) {
+        out.print((value - previous[column]) + "\t");
+        previous[column] = value;
+        return column + 1;
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+}
@@ -0,0 +1,13 @@
+package mf.beast.evolution.branchratemodel;
+
+/**
+ * Model whose work can be counted by a ClockMetricsLogger.
+ */
+public interface ClockMetricsSource {
+
+    /**
+     * Turns the counters of the model on. Subsequent calls return the same
+     * metrics.
+     */
+    public ClockMetrics enableMetrics();
+}
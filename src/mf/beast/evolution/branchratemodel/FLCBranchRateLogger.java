@@ -0,0 +1,237 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Binary trace of the branch rates and clock assignment of a
+ * FlexibleLocalClockModel. All numbers are little endian.
+ * <p>
+ * Header:
+ * <ul>
+ * <li>int magic (FLCR), int version, long number of samples,</li>
+ * <li>int node count, int leaf count, int clock count,</li>
+ * <li>the taxon of each leaf, in node number order,</li>
+ * <li>for each clock its ID and number of taxon sets, and for each taxon set a
+ * byte that is 1 if the stem is included, the number of taxa and the taxa.</li>
+ * </ul>
+ * Strings are an int length followed by UTF-8 bytes. Then come fixed size
+ * records with the sample number (long), the rate of every node (float), the
+ * parent of every node (int, -1 for the root) and the clock index of every node
+ * (short). The records are written through a memory mapped FileChannel and can
+ * be read with FLCBranchRateTrace.
+ */
+@Description("Logs the branch rates, clock assignment and topology of a flexible local clock to a compact binary file "
+        + "that can be read with FLCBranchRateTrace. Nothing is written to the logger's own output.")
+public class FLCBranchRateLogger extends BEASTObject implements Loggable {
+
+    public Input<FlexibleLocalClockModel> branchRateModelInput = new Input<FlexibleLocalClockModel>("branchratemodel",
+            "flexible local clock whose rates are logged.", Validate.REQUIRED);
+    public Input<String> fileNameInput = new Input<String>("fileName", "name of the binary file.",
+            Validate.REQUIRED);
+
+    static final int MAGIC = 0x464C4352;
+    static final int VERSION = 1;
+    // offset of the number of samples in the header
+    static final int SAMPLE_COUNT_OFFSET = 8;
+
+    // size of the regions of the file that are mapped at once
+    private static final int CHUNK_SIZE = 1 << 23;
+
+    private FlexibleLocalClockModel branchModel;
+    private Tree tree;
+    private double[] rates;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer sampleCountBuffer;
+    private MappedByteBuffer buffer;
+    // position in the file of the start of buffer
+    private long bufferStart;
+    private long headerSize;
+    private int recordSize;
+    private long sampleCount;
+
+    @Override
+    public void initAndValidate() {
+        branchModel = branchRateModelInput.get();
+        tree = branchModel.treeInput.get();
+        rates = new double[tree.getNodeCount()];
+        if (branchModel.getNumberOfClocks() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("FLCBranchRateLogger supports at most " + Short.MAX_VALUE + " clocks");
+        }
+    }
+
+    static int getRecordSize(int nodeCount) {
+        return Long.BYTES + nodeCount * (Float.BYTES + Integer.BYTES + Short.BYTES);
+    }
+
+    /**
+     * Loggable implementation *
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        try {
+            file = new RandomAccessFile(fileNameInput.get(), "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+
+            ByteBuffer header = createHeader();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            headerSize = channel.size();
+            sampleCountBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SAMPLE_COUNT_OFFSET + Long.BYTES);
+            sampleCountBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            recordSize = getRecordSize(tree.getNodeCount());
+            sampleCount = 0;
+            bufferStart = headerSize;
+            map();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    private ByteBuffer createHeader() {
+        ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        header = putInt(header, MAGIC);
+        header = putInt(header, VERSION);
+        header = ensureCapacity(header, Long.BYTES);
+        header.putLong(0);
+        header = putInt(header, tree.getNodeCount());
+        header = putInt(header, tree.getLeafNodeCount());
+        header = putInt(header, branchModel.getNumberOfClocks());
+        for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+            header = putString(header, tree.getNode(i).getID());
+        }
+
+        header = putString(header, getID(branchModel.getRootRateModel()));
+        header = putInt(header, 0);
+        List<CladeRateModel> cladeRateModels = branchModel.getCladeRateModels();
+        for (CladeRateModel cladeRateModel : cladeRateModels) {
+            header = putString(header, getID(cladeRateModel));
+            header = putInt(header, cladeRateModel.getTaxonSetCount());
+            for (int i = 0; i < cladeRateModel.getTaxonSetCount(); i++) {
+                TaxonSet taxonSet = cladeRateModel.getTaxonSet(i);
+                header = ensureCapacity(header, 1);
+                header.put((byte) (cladeRateModel.includeStem(i) ? 1 : 0));
+                header = putInt(header, taxonSet.getTaxonCount());
+                for (String taxon : taxonSet.asStringList()) {
+                    header = putString(header, taxon);
+                }
+            }
+        }
+        header.flip();
+        return header;
+    }
+
+    private static String getID(Object rateModel) {
+        return ((BEASTInterface) rateModel).getID();
+    }
+
+    private static ByteBuffer putInt(ByteBuffer buffer, int value) {
+        buffer = ensureCapacity(buffer, Integer.BYTES);
+        buffer.putInt(value);
+        return buffer;
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        buffer = putInt(buffer, bytes.length);
+        buffer = ensureCapacity(buffer, bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + size))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    // maps the region of the file following the records written so far
+    private void map() throws IOException {
+        int size = Math.max(CHUNK_SIZE / recordSize, 1) * recordSize;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferStart, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        try {
+            if (buffer.remaining() < recordSize) {
+                bufferStart += buffer.position();
+                map();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write to " + fileNameInput.get() + ": " + e.getMessage());
+        }
+
+        branchModel.getRatesForAllBranches(rates);
+        int nodeCount = rates.length;
+        buffer.putLong(sample);
+        for (int i = 0; i < nodeCount; i++) {
+            buffer.putFloat((float) rates[i]);
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            Node parent = tree.getNode(i).getParent();
+            buffer.putInt(parent == null ? -1 : parent.getNr());
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            buffer.putShort((short) branchModel.getClockIndex(i));
+        }
+
+        sampleCount++;
+        sampleCountBuffer.putLong(SAMPLE_COUNT_OFFSET, sampleCount);
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            buffer.force();
+            sampleCountBuffer.force();
+            buffer = null;
+            sampleCountBuffer = null;
+            try {
+                // drop the unused part of the last mapped region, this can fail on
+                // systems that do not allow truncating mapped files
+                channel.truncate(headerSize + recordSize * sampleCount);
+            } catch (IOException e) {
+                // the reader relies on the number of samples in the header
+            }
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close " + fileNameInput.get() + ": " + e.getMessage());
+        } finally {
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reader of the binary files written by FLCBranchRateLogger. readSample loads a
+ * sample, whose rates, parents and clock indices are then available by node
+ * number.
+ */
+public class FLCBranchRateTrace implements Closeable {
+
+    private final FileChannel channel;
+
+    private final long sampleCount;
+    private final int nodeCount;
+    private final String[] taxa;
+    private final String[] clockIDs;
+    private final List<List<List<String>>> clockTaxonSets;
+    private final List<boolean[]> clockStems;
+
+    private final long recordStart;
+    private final int recordSize;
+    private final ByteBuffer record;
+
+    private long sample = -1;
+    private final float[] rates;
+    private final int[] parents;
+    private final short[] clocks;
+
+    public FLCBranchRateTrace(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, 2 * Integer.BYTES + Long.BYTES + 3 * Integer.BYTES);
+            if (header.getInt() != FLCBranchRateLogger.MAGIC) {
+                throw new IOException(fileName + " is not a binary FLC branch rate file");
+            }
+            int version = header.getInt();
+            if (version != FLCBranchRateLogger.VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + fileName);
+            }
+            long declaredSampleCount = header.getLong();
+            nodeCount = header.getInt();
+            int leafCount = header.getInt();
+            int clockCount = header.getInt();
+            long position = header.position();
+
+            taxa = new String[leafCount];
+            for (int i = 0; i < leafCount; i++) {
+                taxa[i] = readString(position);
+                position += Integer.BYTES + taxa[i].getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            clockIDs = new String[clockCount];
+            clockTaxonSets = new ArrayList<List<List<String>>>(clockCount);
+            clockStems = new ArrayList<boolean[]>(clockCount);
+            for (int i = 0; i < clockCount; i++) {
+                clockIDs[i] = readString(position);
+                position += Integer.BYTES + clockIDs[i].getBytes(StandardCharsets.UTF_8).length;
+                int taxonSetCount = read(position, Integer.BYTES).getInt();
+                position += Integer.BYTES;
+                List<List<String>> taxonSets = new ArrayList<List<String>>(taxonSetCount);
+                boolean[] stems = new boolean[taxonSetCount];
+                for (int j = 0; j < taxonSetCount; j++) {
+                    ByteBuffer buffer = read(position, 1 + Integer.BYTES);
+                    stems[j] = buffer.get() == 1;
+                    int taxonCount = buffer.getInt();
+                    position += 1 + Integer.BYTES;
+                    List<String> taxonSet = new ArrayList<String>(taxonCount);
+                    for (int k = 0; k < taxonCount; k++) {
+                        String taxon = readString(position);
+                        position += Integer.BYTES + taxon.getBytes(StandardCharsets.UTF_8).length;
+                        taxonSet.add(taxon);
+                    }
+                    taxonSets.add(Collections.unmodifiableList(taxonSet));
+                }
+                clockTaxonSets.add(Collections.unmodifiableList(taxonSets));
+                clockStems.add(stems);
+            }
+
+            recordStart = position;
+            recordSize = FLCBranchRateLogger.getRecordSize(nodeCount);
+            // the file can hold fewer records if the run was interrupted
+            sampleCount = Math.min(declaredSampleCount, (channel.size() - recordStart) / recordSize);
+            record = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+            rates = new float[nodeCount];
+            parents = new int[nodeCount];
+            clocks = new short[nodeCount];
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    private String readString(long position) throws IOException {
+        int length = read(position, Integer.BYTES).getInt();
+        return new String(read(position + Integer.BYTES, length).array(), StandardCharsets.UTF_8);
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return taxa.length;
+    }
+
+    /**
+     * @return the taxon of the leaf with number nodeNr
+     */
+    public String getTaxon(int nodeNr) {
+        return taxa[nodeNr];
+    }
+
+    public int getClockCount() {
+        return clockIDs.length;
+    }
+
+    public String getClockID(int clock) {
+        return clockIDs[clock];
+    }
+
+    /**
+     * @return the taxon sets of a clock, empty for the root clock
+     */
+    public List<List<String>> getTaxonSets(int clock) {
+        return clockTaxonSets.get(clock);
+    }
+
+    public boolean includeStem(int clock, int taxonSet) {
+        return clockStems.get(clock)[taxonSet];
+    }
+
+    /**
+     * Loads the index-th sample of the file.
+     */
+    public void readSample(long index) throws IOException {
+        if (index < 0 || index >= sampleCount) {
+            throw new IndexOutOfBoundsException("sample " + index + " of " + sampleCount);
+        }
+        record.clear();
+        readFully(record, recordStart + index * recordSize);
+        record.flip();
+        sample = record.getLong();
+        for (int i = 0; i < nodeCount; i++) {
+            rates[i] = record.getFloat();
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            parents[i] = record.getInt();
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            clocks[i] = record.getShort();
+        }
+    }
+
+    /**
+     * @return the state number of the loaded sample
+     */
+    public long getSample() {
+        return sample;
+    }
+
+    public float getRate(int nodeNr) {
+        return rates[nodeNr];
+    }
+
+    /**
+     * @return the number of the parent of the node, -1 for the root
+     */
+    public int getParent(int nodeNr) {
+        return parents[nodeNr];
+    }
+
+    public int getClockIndex(int nodeNr) {
+        return clocks[nodeNr];
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -6,41 +6,54 @@ import beast.base.evolution.tree.Node;
 import beast.base.util.DiscreteStatistics;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by mathieu on 20/07/2017.
  */
-public class FLCRateStatistic extends RateStatistic {
+public class FLCRateStatistic extends RateStatistic implements ClockMetricsSource {
+
+    // statistics of each clock
+    public static final int MEAN = 0;
+    public static final int VARIANCE = 1;
+    public static final int COEFFICIENT_OF_VARIATION = 2;
+    public static final int STATISTIC_COUNT = 3;
 
     private FlexibleLocalClockModel branchModel;
-    private List<List<Double>> rates;
-    private List<List<Double>> branchLengths;
 
-    private Map<BranchRateModel, Integer> map = new HashMap<BranchRateModel, Integer>();
+    // rates and lengths of the branches of each clock in node order, the arrays
+    // are only reallocated when the number of branches of a clock changes
+    private double[][] rates;
+    private double[][] branchLengths;
+    private int[] branchCounts;
+
+    // rate of every node, filled by FlexibleLocalClockModel.getRatesForAllBranches
+    private double[] nodeRates;
+    // rate and clock of every node at the previous computation, to count the
+    // branches that changed
+    private double[] previousNodeRates;
+    private int[] previousNodeClocks;
+    private int changedBranchCount;
+
+    private double[] clockStatistics;
+    private long lastSample = -1;
+
+    // null until enableMetrics() is called
+    private ClockMetrics metrics;
 
     @Override
     public void initAndValidate() {
         super.initAndValidate();
         branchModel = (FlexibleLocalClockModel) branchRateModelInput.get();
         int clockCount = branchModel.getNumberOfClocks();
-        rates = new ArrayList<List<Double>>(clockCount);
-        branchLengths = new ArrayList<List<Double>>(clockCount);
-        for (int i = 0; i < clockCount; i++) {
-            rates.add(new ArrayList<>());
-            branchLengths.add(new ArrayList<>());
-        }
-
-        int index = 0;
-        for (BranchRateModel brm : branchModel.getClockMap().values()) {
-            if (!map.containsKey(brm)) {
-                map.put(brm, index);
-                index++;
-            }
-        }
+        rates = new double[clockCount][0];
+        branchLengths = new double[clockCount][0];
+        branchCounts = new int[clockCount];
+        nodeRates = new double[treeInput.get().getNodeCount()];
+        previousNodeRates = new double[nodeRates.length];
+        previousNodeClocks = new int[nodeRates.length];
+        Arrays.fill(previousNodeClocks, -1);
+        clockStatistics = new double[clockCount * STATISTIC_COUNT];
     }
 
     /**
@@ -50,9 +63,9 @@ public class FLCRateStatistic extends RateStatistic {
     @Override
     public void init(final PrintStream out) {
         super.init(out);
-        for (BranchRateModel brm : map.keySet()) {
-            BranchRateModel.Base brm2 = (BranchRateModel.Base) brm;
-            String id = brm2.getID();
+        for (int i = 0; i < branchModel.getNumberOfClocks(); i++) {
+            BranchRateModel.Base brm = (BranchRateModel.Base) branchModel.getClock(i);
+            String id = brm.getID();
             if (id == null) {
                 id = "";
             }
@@ -62,40 +75,116 @@ public class FLCRateStatistic extends RateStatistic {
 
     @Override
     public void log(final long sample, final PrintStream out) {
+        ClockEvents.RateStatisticLog event = new ClockEvents.RateStatisticLog();
+        event.begin();
         super.log(sample, out);
 
-        for (int i = 0; i < rates.size(); i++) {
-            rates.get(i).clear();
-            branchLengths.get(i).clear();
+        calculateClockStatistics(sample);
+        for (int i = 0; i < clockStatistics.length; i++) {
+            out.print(clockStatistics[i] + "\t");
+        }
+        if (event.shouldCommit()) {
+            event.set(nodeRates.length, rates.length, changedBranchCount);
+            event.sample = sample;
+            event.commit();
         }
+    }
+
+    public int getNumberOfClocks() {
+        return rates.length;
+    }
+
+    public BranchRateModel getClock(int clock) {
+        return branchModel.getClock(clock);
+    }
+
+    /**
+     * @param clock     index of the clock in FlexibleLocalClockModel
+     * @param statistic MEAN, VARIANCE or COEFFICIENT_OF_VARIATION
+     * @return the statistic computed by the last call to calculateClockStatistics
+     */
+    public double getClockStatistic(int clock, int statistic) {
+        return clockStatistics[clock * STATISTIC_COUNT + statistic];
+    }
+
+    /**
+     * Computes the length-weighted mean rate, the variance and the coefficient of
+     * variation of the rates of each clock. Nothing is done if the statistics of
+     * this sample were already computed, e.g. by another logger.
+     */
+    public void calculateClockStatistics(final long sample) {
+        if (sample == lastSample) {
+            return;
+        }
+        lastSample = sample;
+        long start = ClockMetrics.start(metrics);
+
         final Node[] nodes = treeInput.get().getNodesAsArray();
+        double[] tmp = previousNodeRates;
+        previousNodeRates = nodeRates;
+        nodeRates = tmp;
+        branchModel.getRatesForAllBranches(nodeRates);
+        changedBranchCount = 0;
+
+        // count the branches of each clock first so that the arrays have the
+        // exact length expected by DiscreteStatistics
+        Arrays.fill(branchCounts, 0);
+        for (Node node : nodes) {
+            if (!node.isRoot()) {
+                branchCounts[branchModel.getClockIndex(node.getNr())]++;
+            }
+        }
+        for (int i = 0; i < branchCounts.length; i++) {
+            if (rates[i].length != branchCounts[i]) {
+                rates[i] = new double[branchCounts[i]];
+                branchLengths[i] = new double[branchCounts[i]];
+            }
+            branchCounts[i] = 0;
+        }
+
         for (Node node : nodes) {
             if (!node.isRoot()) {
                 final Node parent = node.getParent();
-                BranchRateModel brm = branchModel.getClockMap().get(node.getNr());
-                rates.get(map.get(brm)).add(brm.getRateForBranch(node));
-                branchLengths.get(map.get(brm)).add(parent.getHeight() - node.getHeight());
+                final int nodeNr = node.getNr();
+                int clock = branchModel.getClockIndex(nodeNr);
+                if (clock != previousNodeClocks[nodeNr] || nodeRates[nodeNr] != previousNodeRates[nodeNr]) {
+                    previousNodeClocks[nodeNr] = clock;
+                    changedBranchCount++;
+                }
+                int index = branchCounts[clock]++;
+                rates[clock][index] = nodeRates[nodeNr];
+                branchLengths[clock][index] = parent.getHeight() - node.getHeight();
             }
         }
 
-        for (BranchRateModel brm : map.keySet()) {
+        for (int clock = 0; clock < rates.length; clock++) {
             double totalWeightedRate = 0.0;
             double totalTreeLength = 0.0;
-            int index = map.get(brm);
-            final double[] ratesArray = new double[rates.get(index).size()];
+            final double[] ratesArray = rates[clock];
             for (int i = 0; i < ratesArray.length; i++) {
-                final double bl = branchLengths.get(index).get(i);
-                ratesArray[i] = rates.get(index).get(i);
+                final double bl = branchLengths[clock][i];
                 totalWeightedRate += ratesArray[i] * bl;
                 totalTreeLength += bl;
             }
             double m = totalWeightedRate / totalTreeLength;
 
-            double variance = DiscreteStatistics.variance(ratesArray);
             final double mean = DiscreteStatistics.mean(ratesArray);
-            double cv = Math.sqrt(DiscreteStatistics.variance(ratesArray, mean)) / mean;
-            out.print(m + "\t" + variance + "\t" + cv + "\t");
+            // same as DiscreteStatistics.variance(ratesArray) without computing the mean again
+            double variance = DiscreteStatistics.variance(ratesArray, mean);
+            double cv = Math.sqrt(variance) / mean;
+            clockStatistics[clock * STATISTIC_COUNT + MEAN] = m;
+            clockStatistics[clock * STATISTIC_COUNT + VARIANCE] = variance;
+            clockStatistics[clock * STATISTIC_COUNT + COEFFICIENT_OF_VARIATION] = cv;
+        }
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.CLOCK_STATISTICS, start);
+    }
+
+    @Override
+    public ClockMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ClockMetrics(ClockMetrics.Counter.CLOCK_STATISTICS);
         }
+        return metrics;
     }
 
 }
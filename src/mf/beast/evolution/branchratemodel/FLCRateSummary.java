@@ -0,0 +1,102 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+
+@Description("Keeps posterior summaries of the per clock statistics of an FLCRateStatistic while the chain runs: "
+        + "mean, variance, median and 95% interval estimated with P-square quantiles. No column is logged, "
+        + "the summary is written when the run ends.")
+public class FLCRateSummary extends BEASTObject implements Loggable {
+
+    public Input<FLCRateStatistic> rateStatisticInput = new Input<FLCRateStatistic>("rateStatistic",
+            "rate statistic of the flexible local clock to summarise.", Validate.REQUIRED);
+    public Input<Long> burninInput = new Input<Long>("burnin",
+            "samples with a lower number are not summarised (default 0).", 0L);
+    public Input<String> fileNameInput = new Input<String>("fileName",
+            "file the summary is written to. The summary is written to the screen log if not specified.");
+
+    private static final String[] STATISTIC_NAMES = { "mean", "variance", "coefficientOfVariation" };
+
+    private FLCRateStatistic rateStatistic;
+
+    // indexed like the statistics of FLCRateStatistic
+    private StatisticSummary summary;
+
+    @Override
+    public void initAndValidate() {
+        rateStatistic = rateStatisticInput.get();
+        String[] ids = new String[rateStatistic.getNumberOfClocks()];
+        for (int clock = 0; clock < ids.length; clock++) {
+            ids[clock] = ((BranchRateModel.Base) rateStatistic.getClock(clock)).getID();
+        }
+        summary = new StatisticSummary(getStatisticNames(ids));
+    }
+
+    /**
+     * @param ids IDs of the clocks
+     * @return the names of the statistics of the clocks, in the order they are
+     *         logged by FLCRateStatistic
+     */
+    static String[] getStatisticNames(String[] ids) {
+        String[] names = new String[ids.length * FLCRateStatistic.STATISTIC_COUNT];
+        for (int clock = 0; clock < ids.length; clock++) {
+            String id = ids[clock] == null ? "" : ids[clock];
+            for (int statistic = 0; statistic < FLCRateStatistic.STATISTIC_COUNT; statistic++) {
+                names[clock * FLCRateStatistic.STATISTIC_COUNT + statistic] = id + "." + STATISTIC_NAMES[statistic];
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Loggable implementation *
+     */
+
+    @Override
+    public void init(PrintStream out) {
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        if (sample < burninInput.get()) {
+            return;
+        }
+        rateStatistic.calculateClockStatistics(sample);
+        for (int clock = 0; clock < rateStatistic.getNumberOfClocks(); clock++) {
+            for (int statistic = 0; statistic < FLCRateStatistic.STATISTIC_COUNT; statistic++) {
+                summary.add(clock * FLCRateStatistic.STATISTIC_COUNT + statistic,
+                        rateStatistic.getClockStatistic(clock, statistic));
+            }
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        String fileName = fileNameInput.get();
+        if (fileName == null) {
+            printSummary(Log.info);
+            return;
+        }
+        try (PrintStream summary = new PrintStream(fileName)) {
+            printSummary(summary);
+        } catch (FileNotFoundException e) {
+            Log.warning.println("WARNING: could not write FLC rate summary to " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes one line per clock and statistic with the number of samples, the
+     * posterior mean, variance, median and 95% interval of the statistic.
+     */
+    public void printSummary(PrintStream out) {
+        summary.print(out);
+    }
+}
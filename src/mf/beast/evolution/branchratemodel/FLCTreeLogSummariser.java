@@ -0,0 +1,761 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import beast.base.core.BEASTInterface;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.parser.XMLParser;
+
+/**
+ * Command line tool that computes the statistics of FLCRateStatistic for every
+ * tree of a tree log and summarises them, without loading the log in memory:
+ *
+ * <pre>
+ * applauncher FLCTreeLogSummariser -xml analysis.xml -trees run.trees [-log run.log]
+ *         [-clock ID] [-rate rate] [-burnin sample] [-threads n] [-out trace.log] [-summary summary.txt]
+ * </pre>
+ *
+ * The clades of the clocks are read from the FlexibleLocalClockModel of the
+ * analysis, and the branches of every tree are assigned to the clocks as
+ * FlexibleLocalClockModel does. The trees must carry the branch rates as
+ * metadata (e.g. [&amp;rate=1.02]) and be written one per line, as BEAST does.
+ * If the clock samples its clades with cladeIndicators, the trace log gives the
+ * active clocks of every sample.
+ * <p>
+ * The tree log is streamed through memory mapped windows and batches of trees
+ * are processed in parallel in a ForkJoinPool, so the memory used only depends
+ * on the size of a tree and the number of threads. The statistics of every
+ * sample are written to the -out file with the columns of FLCRateStatistic, and
+ * their posterior summaries (see FLCRateSummary) to the -summary file or the
+ * screen.
+ */
+public class FLCTreeLogSummariser {
+
+    // trees processed at once by each thread
+    private static final int BATCH_SIZE_PER_THREAD = 16;
+
+    private final String[] clockIDs;
+    private final String rateName;
+
+    // taxon sets of the clade clocks and whether they include the stem, indexed by
+    // clock - 1
+    private final List<List<Set<String>>> cladeTaxa = new ArrayList<List<Set<String>>>();
+    private final List<boolean[]> cladeStems = new ArrayList<boolean[]>();
+    // ID and dimension of the cladeIndicators, null if every clock is always active
+    private final String indicatorID;
+    private final int indicatorCount;
+
+    // set up by setUpCladeLookup once the taxa of the tree log are known, as in
+    // FlexibleLocalClockModel
+    private TaxonIndex taxonIndex;
+    private Map<String, Integer> labelIndices;
+    private CladeHashMap cladeLookup;
+    private int[] entryClock;
+    private int[] entrySize;
+    private boolean[] entryStem;
+    private int[] entryNext;
+
+    /**
+     * @param clock    flexible local clock of the analysis
+     * @param rateName name of the metadata of the branch rates in the trees
+     */
+    public FLCTreeLogSummariser(FlexibleLocalClockModel clock, String rateName) {
+        this.rateName = rateName;
+        clockIDs = new String[clock.getNumberOfClocks()];
+        for (int c = 0; c < clockIDs.length; c++) {
+            String id = ((BEASTInterface) clock.getClock(c)).getID();
+            clockIDs[c] = id == null ? "" : id;
+        }
+        for (CladeRateModel rateModel : clock.getCladeRateModels()) {
+            List<Set<String>> taxonSets = new ArrayList<Set<String>>();
+            boolean[] stems = new boolean[rateModel.getTaxonSetCount()];
+            for (int i = 0; i < stems.length; i++) {
+                taxonSets.add(rateModel.getTaxonSet(i).getTaxaNames());
+                stems[i] = rateModel.includeStem(i);
+            }
+            cladeTaxa.add(taxonSets);
+            cladeStems.add(stems);
+        }
+        BooleanParameter indicators = clock.cladeIndicatorsInput.get();
+        indicatorID = indicators == null ? null : indicators.getID();
+        indicatorCount = indicators == null ? 0 : indicators.getDimension();
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("-") || i + 1 == args.length) {
+                printUsage();
+                return;
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        if (!options.containsKey("xml") || !options.containsKey("trees")) {
+            printUsage();
+            return;
+        }
+
+        FlexibleLocalClockModel clock;
+        try {
+            Object analysis = new XMLParser().parseFile(new File(options.get("xml")));
+            clock = findClock((BEASTInterface) analysis, options.get("clock"));
+        } catch (Exception e) {
+            System.err.println("Could not load " + options.get("xml") + ": " + e.getMessage());
+            return;
+        }
+        if (clock == null) {
+            System.err.println("No FlexibleLocalClockModel" + (options.containsKey("clock") ? " with ID " + options.get("clock") : "")
+                    + " in " + options.get("xml"));
+            return;
+        }
+
+        String rateName = options.containsKey("rate") ? options.get("rate") : "rate";
+        long burnin = options.containsKey("burnin") ? Long.parseLong(options.get("burnin")) : 0;
+        int threads = options.containsKey("threads") ? Integer.parseInt(options.get("threads"))
+                : Runtime.getRuntime().availableProcessors();
+        FLCTreeLogSummariser summariser = new FLCTreeLogSummariser(clock, rateName);
+        try (PrintStream trace = options.containsKey("out") ? new PrintStream(options.get("out")) : null;
+                PrintStream summary = options.containsKey("summary") ? new PrintStream(options.get("summary"))
+                        : null) {
+            StatisticSummary statistics = summariser.summarise(options.get("trees"), options.get("log"), burnin,
+                    threads, trace);
+            statistics.print(summary == null ? System.out : summary);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: FLCTreeLogSummariser -xml analysis.xml -trees run.trees [-log run.log] [-clock ID]\n"
+                + "        [-rate rate] [-burnin sample] [-threads n] [-out trace.log] [-summary summary.txt]\n"
+                + "  -xml      analysis with a FlexibleLocalClockModel\n"
+                + "  -trees    tree log with the branch rates as metadata\n"
+                + "  -log      trace log, needed if the clock has cladeIndicators\n"
+                + "  -clock    ID of the FlexibleLocalClockModel if the analysis has several\n"
+                + "  -rate     name of the rate metadata (default rate)\n"
+                + "  -burnin   samples with a lower number are skipped (default 0)\n"
+                + "  -threads  number of threads (default: number of processors)\n"
+                + "  -out      file the statistics of every sample are written to\n"
+                + "  -summary  file the summary is written to (default: screen)");
+    }
+
+    // the flexible local clock with the given ID (any if id is null) reachable
+    // from analysis
+    private static FlexibleLocalClockModel findClock(BEASTInterface analysis, String id) {
+        Set<BEASTInterface> visited = new HashSet<BEASTInterface>();
+        Deque<BEASTInterface> queue = new ArrayDeque<BEASTInterface>();
+        queue.add(analysis);
+        visited.add(analysis);
+        while (!queue.isEmpty()) {
+            BEASTInterface object = queue.poll();
+            if (object instanceof FlexibleLocalClockModel && (id == null || id.equals(object.getID()))) {
+                return (FlexibleLocalClockModel) object;
+            }
+            for (BEASTInterface child : object.listActiveBEASTObjects()) {
+                if (visited.add(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of the statistics, in the order of the columns of
+     *         FLCRateStatistic
+     */
+    public String[] getStatisticNames() {
+        return FLCRateSummary.getStatisticNames(clockIDs);
+    }
+
+    /**
+     * Computes the statistics of the clocks for every tree of treeFile whose
+     * sample number is at least burnin.
+     *
+     * @param logFile trace log with the cladeIndicators, may be null if the clock
+     *                has none
+     * @param trace   stream the statistics of every sample are written to, may be
+     *                null
+     * @return the summary of the statistics
+     */
+    public StatisticSummary summarise(String treeFile, String logFile, long burnin, int threads, PrintStream trace)
+            throws IOException {
+        if (indicatorID != null && logFile == null) {
+            throw new IllegalArgumentException("The clock samples its clades with " + indicatorID
+                    + ", the trace log is needed to know which clocks are active");
+        }
+        String[] names = getStatisticNames();
+        StatisticSummary summary = new StatisticSummary(names);
+        if (trace != null) {
+            trace.print("Sample\t");
+            for (String name : names) {
+                trace.print(name + "\t");
+            }
+            trace.println();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (MappedLineReader trees = new MappedLineReader(treeFile);
+                IndicatorTrace indicators = indicatorID == null ? null : new IndicatorTrace(logFile)) {
+            String line = readHeader(trees);
+            int batchSize = threads * BATCH_SIZE_PER_THREAD;
+            Batch batch = new Batch(batchSize);
+            long index = 0;
+            while (line != null && !line.trim().equalsIgnoreCase("end;")) {
+                if (isTree(line)) {
+                    long sample = getSampleNumber(line, index++);
+                    if (sample >= burnin) {
+                        boolean[] active = indicators == null ? null : indicators.getActive(sample);
+                        batch.add(sample, line, active);
+                        if (batch.size == batchSize) {
+                            process(pool, batch, summary, trace);
+                        }
+                    }
+                }
+                line = trees.readLine();
+            }
+            process(pool, batch, summary, trace);
+        } finally {
+            pool.shutdown();
+        }
+        return summary;
+    }
+
+    private void process(ForkJoinPool pool, Batch batch, StatisticSummary summary, PrintStream trace) {
+        pool.invoke(new TreeTask(batch, 0, batch.size));
+        for (int k = 0; k < batch.size; k++) {
+            double[] statistics = batch.statistics[k];
+            for (int i = 0; i < statistics.length; i++) {
+                summary.add(i, statistics[i]);
+            }
+            if (trace != null) {
+                trace.print(batch.samples[k] + "\t");
+                for (double statistic : statistics) {
+                    trace.print(statistic + "\t");
+                }
+                trace.println();
+            }
+        }
+        batch.clear();
+    }
+
+    // Reads the lines before the first tree, sets up the taxa from the translate
+    // block (or the first tree if there is none) and returns the first tree line
+    private String readHeader(MappedLineReader trees) throws IOException {
+        StringBuilder translate = null;
+        Map<String, String> labels = null;
+        String line = trees.readLine();
+        while (line != null && !isTree(line)) {
+            String trimmed = line.trim();
+            if (translate != null) {
+                translate.append(' ').append(trimmed);
+                if (trimmed.endsWith(";")) {
+                    labels = parseTranslate(translate.substring(0, translate.length() - 1));
+                    translate = null;
+                }
+            } else if (trimmed.equalsIgnoreCase("translate")) {
+                translate = new StringBuilder();
+            }
+            line = trees.readLine();
+        }
+        if (line == null) {
+            throw new IOException("No tree in the tree log");
+        }
+
+        List<String> taxa = new ArrayList<String>();
+        labelIndices = new HashMap<String, Integer>();
+        if (labels != null) {
+            for (Map.Entry<String, String> entry : labels.entrySet()) {
+                labelIndices.put(entry.getKey(), taxa.size());
+                taxa.add(entry.getValue());
+            }
+        } else {
+            for (String label : new SampledTree(line, null, null).leafLabels) {
+                labelIndices.put(label, taxa.size());
+                taxa.add(label);
+            }
+        }
+        setUpCladeLookup(taxa);
+        return line;
+    }
+
+    // labels and taxa of a translate block, in order
+    private static Map<String, String> parseTranslate(String block) {
+        Map<String, String> labels = new LinkedHashMap<String, String>();
+        for (String entry : block.split(",")) {
+            String[] fields = entry.trim().split("\\s+", 2);
+            if (fields.length == 2) {
+                labels.put(fields[0], unquote(fields[1].trim()));
+            }
+        }
+        return labels;
+    }
+
+    private static String unquote(String label) {
+        if (label.length() >= 2 && (label.charAt(0) == '\'' || label.charAt(0) == '"')
+                && label.charAt(label.length() - 1) == label.charAt(0)) {
+            return label.substring(1, label.length() - 1);
+        }
+        return label;
+    }
+
+    private static boolean isTree(String line) {
+        String trimmed = line.trim();
+        return trimmed.length() > 5 && trimmed.substring(0, 5).equalsIgnoreCase("tree ");
+    }
+
+    // number of the sample of a "tree STATE_n = ..." line, index if the tree has no
+    // STATE_ name
+    private static long getSampleNumber(String line, long index) {
+        int start = line.indexOf("STATE_");
+        int equals = line.indexOf('=');
+        if (start == -1 || (equals != -1 && start > equals)) {
+            return index;
+        }
+        start += "STATE_".length();
+        int end = start;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+            end++;
+        }
+        return end > start ? Long.parseLong(line.substring(start, end)) : index;
+    }
+
+    // Index the taxon sets of the clade clocks by hash, as FlexibleLocalClockModel
+    // does
+    private void setUpCladeLookup(List<String> taxa) {
+        taxonIndex = new TaxonIndex(taxa);
+        int entryCount = 0;
+        for (List<Set<String>> taxonSets : cladeTaxa) {
+            entryCount += taxonSets.size();
+        }
+        cladeLookup = new CladeHashMap(entryCount);
+        entryClock = new int[entryCount];
+        entrySize = new int[entryCount];
+        entryStem = new boolean[entryCount];
+        entryNext = new int[entryCount];
+
+        int entry = 0;
+        for (int c = 0; c < cladeTaxa.size(); c++) {
+            for (int i = 0; i < cladeTaxa.get(c).size(); i++) {
+                Set<String> taxonSet = cladeTaxa.get(c).get(i);
+                entryClock[entry] = c + 1;
+                entrySize[entry] = taxonSet.size();
+                entryStem[entry] = cladeStems.get(c)[i];
+                entryNext[entry] = -1;
+                // a taxon set with taxa missing from the trees never matches a node
+                if (taxonIndex.containsAll(taxonSet)) {
+                    long hash = taxonIndex.hashOf(taxonSet);
+                    if (!cladeLookup.putIfAbsent(hash, entry)) {
+                        int last = cladeLookup.get(hash);
+                        while (entryNext[last] != -1) {
+                            last = entryNext[last];
+                        }
+                        entryNext[last] = entry;
+                    }
+                } else {
+                    entrySize[entry] = -1;
+                }
+                entry++;
+            }
+        }
+    }
+
+    /**
+     * @param line   a tree line of the tree log
+     * @param active the active clade clocks, null if all are
+     * @return the statistics of the clocks, in the order of getStatisticNames()
+     */
+    double[] computeStatistics(String line, boolean[] active) {
+        SampledTree tree = new SampledTree(line, labelIndices, rateName);
+        int nodeCount = tree.nodeCount;
+        int rootNr = nodeCount - 1;
+
+        // nodes are numbered in postorder so children come before their parent
+        long[] nodeHash = new long[nodeCount];
+        int[] leafCount = new int[nodeCount];
+        for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+            if (tree.taxon[nodeNr] != -1) {
+                nodeHash[nodeNr] = taxonIndex.getKey(tree.taxon[nodeNr]);
+                leafCount[nodeNr] = 1;
+            }
+            int parentNr = tree.parent[nodeNr];
+            if (parentNr != -1) {
+                nodeHash[parentNr] += nodeHash[nodeNr];
+                leafCount[parentNr] += leafCount[nodeNr];
+            }
+        }
+
+        // first active clade whose taxon set is the descendants of the node
+        int[] cladeMatch = new int[nodeCount];
+        boolean[] matchStem = new boolean[nodeCount];
+        for (int nodeNr = 0; nodeNr < rootNr; nodeNr++) {
+            cladeMatch[nodeNr] = -1;
+            int entry = cladeLookup.get(nodeHash[nodeNr]);
+            while (entry != -1 && (entrySize[entry] != leafCount[nodeNr]
+                    || (active != null && !active[entryClock[entry] - 1]))) {
+                entry = entryNext[entry];
+            }
+            if (entry != -1) {
+                cladeMatch[nodeNr] = entryClock[entry];
+                matchStem[nodeNr] = tree.taxon[nodeNr] != -1 || entryStem[entry];
+            }
+        }
+        cladeMatch[rootNr] = -1;
+
+        // parents before children: a clade without stem starts its clock on the
+        // branches of its children and takes precedence over a clade with stem
+        int[] nodeClock = new int[nodeCount];
+        for (int nodeNr = rootNr - 1; nodeNr >= 0; nodeNr--) {
+            int parentNr = tree.parent[nodeNr];
+            if (cladeMatch[parentNr] != -1 && !matchStem[parentNr]) {
+                nodeClock[nodeNr] = cladeMatch[parentNr];
+            } else if (cladeMatch[nodeNr] != -1 && matchStem[nodeNr]) {
+                nodeClock[nodeNr] = cladeMatch[nodeNr];
+            } else {
+                nodeClock[nodeNr] = nodeClock[parentNr];
+            }
+        }
+
+        // same statistics as FLCRateStatistic: length-weighted mean rate, variance
+        // and coefficient of variation of the rates
+        int clockCount = clockIDs.length;
+        int[] branchCounts = new int[clockCount];
+        double[] weightedRates = new double[clockCount];
+        double[] lengths = new double[clockCount];
+        double[] rateSums = new double[clockCount];
+        for (int nodeNr = 0; nodeNr < rootNr; nodeNr++) {
+            int clock = nodeClock[nodeNr];
+            branchCounts[clock]++;
+            weightedRates[clock] += tree.rate[nodeNr] * tree.length[nodeNr];
+            lengths[clock] += tree.length[nodeNr];
+            rateSums[clock] += tree.rate[nodeNr];
+        }
+        double[] means = new double[clockCount];
+        double[] squaredDeviations = new double[clockCount];
+        for (int clock = 0; clock < clockCount; clock++) {
+            means[clock] = rateSums[clock] / branchCounts[clock];
+        }
+        for (int nodeNr = 0; nodeNr < rootNr; nodeNr++) {
+            double deviation = tree.rate[nodeNr] - means[nodeClock[nodeNr]];
+            squaredDeviations[nodeClock[nodeNr]] += deviation * deviation;
+        }
+
+        double[] statistics = new double[clockCount * FLCRateStatistic.STATISTIC_COUNT];
+        for (int clock = 0; clock < clockCount; clock++) {
+            double variance = squaredDeviations[clock] / (branchCounts[clock] - 1);
+            statistics[clock * FLCRateStatistic.STATISTIC_COUNT + FLCRateStatistic.MEAN] = weightedRates[clock]
+                    / lengths[clock];
+            statistics[clock * FLCRateStatistic.STATISTIC_COUNT + FLCRateStatistic.VARIANCE] = variance;
+            statistics[clock * FLCRateStatistic.STATISTIC_COUNT
+                    + FLCRateStatistic.COEFFICIENT_OF_VARIATION] = Math.sqrt(variance) / means[clock];
+        }
+        return statistics;
+    }
+
+    // trees of the tree log waiting to be processed, in order
+    private static class Batch {
+        final long[] samples;
+        final String[] lines;
+        final boolean[][] active;
+        final double[][] statistics;
+        int size;
+
+        Batch(int capacity) {
+            samples = new long[capacity];
+            lines = new String[capacity];
+            active = new boolean[capacity][];
+            statistics = new double[capacity][];
+        }
+
+        void add(long sample, String line, boolean[] activeClocks) {
+            samples[size] = sample;
+            lines[size] = line;
+            active[size] = activeClocks;
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(lines, null);
+            Arrays.fill(statistics, null);
+            size = 0;
+        }
+    }
+
+    // computes the statistics of the trees from..to-1 of a batch
+    private class TreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final int from;
+        private final int to;
+
+        TreeTask(Batch batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int k = from; k < to; k++) {
+                    batch.statistics[k] = computeStatistics(batch.lines[k], batch.active[k]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TreeTask(batch, from, middle), new TreeTask(batch, middle, to));
+        }
+    }
+
+    /**
+     * Parent, branch length, rate and taxon of the nodes of a newick tree,
+     * numbered in postorder so that the root is the last node. The parser does
+     * not recurse so that deep trees cannot overflow the stack.
+     */
+    private static class SampledTree {
+        int nodeCount;
+        int[] parent;
+        double[] length;
+        double[] rate;
+        // index of the taxon of a leaf, -1 for internal nodes
+        int[] taxon;
+        // labels of the leaves, only collected if labelIndices is null
+        final List<String> leafLabels = new ArrayList<String>();
+
+        private final String text;
+        private int position;
+
+        SampledTree(String line, Map<String, Integer> labelIndices, String rateName) {
+            text = line;
+            position = line.indexOf('(', line.indexOf('='));
+            if (position == -1) {
+                throw new IllegalArgumentException("Not a newick tree: " + abbreviate(line));
+            }
+            int capacity = 64;
+            parent = new int[capacity];
+            length = new double[capacity];
+            rate = new double[capacity];
+            taxon = new int[capacity];
+
+            // completed nodes waiting for their parent, and for every open
+            // parenthesis the number of such nodes when it was opened
+            int[] children = new int[capacity];
+            int childCount = 0;
+            int[] open = new int[capacity];
+            int openCount = 0;
+            while (position < text.length()) {
+                char c = text.charAt(position);
+                if (c == '(') {
+                    if (openCount == open.length) {
+                        open = Arrays.copyOf(open, 2 * openCount);
+                    }
+                    open[openCount++] = childCount;
+                    position++;
+                } else if (c == ',' || Character.isWhitespace(c)) {
+                    position++;
+                } else if (c == ';') {
+                    break;
+                } else {
+                    int nodeNr = newNode();
+                    if (c == ')') {
+                        if (openCount == 0) {
+                            throw new IllegalArgumentException("Unbalanced parentheses in " + abbreviate(line));
+                        }
+                        int first = open[--openCount];
+                        for (int k = first; k < childCount; k++) {
+                            parent[children[k]] = nodeNr;
+                        }
+                        childCount = first;
+                        position++;
+                        readLabel();
+                        taxon[nodeNr] = -1;
+                    } else {
+                        String label = readLabel();
+                        if (labelIndices == null) {
+                            leafLabels.add(label);
+                            taxon[nodeNr] = -1;
+                        } else {
+                            Integer index = labelIndices.get(label);
+                            if (index == null) {
+                                throw new IllegalArgumentException("Unknown taxon " + label);
+                            }
+                            taxon[nodeNr] = index;
+                        }
+                    }
+                    readAnnotations(nodeNr, rateName);
+                    if (childCount == children.length) {
+                        children = Arrays.copyOf(children, 2 * childCount);
+                    }
+                    children[childCount++] = nodeNr;
+                }
+            }
+            if (openCount != 0 || childCount != 1) {
+                throw new IllegalArgumentException("Unbalanced parentheses in " + abbreviate(line));
+            }
+            parent[nodeCount - 1] = -1;
+        }
+
+        private int newNode() {
+            if (nodeCount == parent.length) {
+                parent = Arrays.copyOf(parent, 2 * nodeCount);
+                length = Arrays.copyOf(length, 2 * nodeCount);
+                rate = Arrays.copyOf(rate, 2 * nodeCount);
+                taxon = Arrays.copyOf(taxon, 2 * nodeCount);
+            }
+            length[nodeCount] = 0.0;
+            rate[nodeCount] = Double.NaN;
+            return nodeCount++;
+        }
+
+        private String readLabel() {
+            int start = position;
+            if (position < text.length() && (text.charAt(position) == '\'' || text.charAt(position) == '"')) {
+                char quote = text.charAt(position);
+                int end = text.indexOf(quote, position + 1);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Unterminated label in " + abbreviate(text));
+                }
+                position = end + 1;
+                return text.substring(start + 1, end);
+            }
+            while (position < text.length() && ":,);[".indexOf(text.charAt(position)) == -1) {
+                position++;
+            }
+            return text.substring(start, position).trim();
+        }
+
+        // metadata comments and branch length after the label of a node
+        private void readAnnotations(int nodeNr, String rateName) {
+            while (position < text.length()) {
+                char c = text.charAt(position);
+                if (c == '[') {
+                    int end = text.indexOf(']', position);
+                    if (end == -1) {
+                        throw new IllegalArgumentException("Unterminated comment in " + abbreviate(text));
+                    }
+                    if (rateName != null && position + 1 < end && text.charAt(position + 1) == '&') {
+                        readRate(nodeNr, position + 2, end, rateName);
+                    }
+                    position = end + 1;
+                } else if (c == ':') {
+                    int start = ++position;
+                    while (position < text.length() && ",);[".indexOf(text.charAt(position)) == -1) {
+                        position++;
+                    }
+                    length[nodeNr] = Double.parseDouble(text.substring(start, position).trim());
+                } else if (Character.isWhitespace(c)) {
+                    position++;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        // value of the rate in the metadata text[start..end-1], attributes are
+        // separated by commas outside of braces
+        private void readRate(int nodeNr, int start, int end, String rateName) {
+            int depth = 0;
+            int attributeStart = start;
+            for (int i = start; i <= end; i++) {
+                char c = i < end ? text.charAt(i) : ',';
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                } else if (c == ',' && depth == 0) {
+                    int equals = text.indexOf('=', attributeStart);
+                    if (equals != -1 && equals < i && text.substring(attributeStart, equals).trim().equals(rateName)) {
+                        rate[nodeNr] = Double.parseDouble(text.substring(equals + 1, i).trim());
+                        return;
+                    }
+                    attributeStart = i + 1;
+                }
+            }
+        }
+
+        private static String abbreviate(String line) {
+            return line.length() > 80 ? line.substring(0, 80) + "..." : line;
+        }
+    }
+
+    /**
+     * Cursor on the cladeIndicators columns of a trace log, which is read
+     * together with the tree log.
+     */
+    private class IndicatorTrace implements AutoCloseable {
+        private final BufferedReader reader;
+        private final int[] columns;
+        private long sample = -1;
+        private boolean[] active;
+
+        IndicatorTrace(String fileName) throws IOException {
+            try {
+                reader = new BufferedReader(new FileReader(fileName));
+            } catch (FileNotFoundException e) {
+                throw new IOException("Could not open " + fileName);
+            }
+            String line = reader.readLine();
+            while (line != null && (line.startsWith("#") || line.trim().isEmpty())) {
+                line = reader.readLine();
+            }
+            if (line == null) {
+                throw new IOException(fileName + " has no header");
+            }
+            List<String> header = Arrays.asList(line.split("\t"));
+            columns = new int[indicatorCount];
+            for (int i = 0; i < indicatorCount; i++) {
+                columns[i] = header.indexOf(indicatorCount == 1 ? indicatorID : indicatorID + "." + (i + 1));
+                if (columns[i] == -1) {
+                    throw new IOException(fileName + " has no column for " + indicatorID);
+                }
+            }
+        }
+
+        // the active clocks of sample, the trace log must have a line for it
+        boolean[] getActive(long target) throws IOException {
+            while (sample < target) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                if (line.startsWith("#") || line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                sample = Long.parseLong(fields[0].trim());
+                active = new boolean[indicatorCount];
+                for (int i = 0; i < indicatorCount; i++) {
+                    String value = fields[columns[i]].trim();
+                    active[i] = value.equals("1") || value.equalsIgnoreCase("true");
+                }
+            }
+            if (sample != target) {
+                throw new IOException("The trace log has no line for sample " + target);
+            }
+            return active;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
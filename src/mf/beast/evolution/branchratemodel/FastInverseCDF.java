@@ -0,0 +1,408 @@
+package mf.beast.evolution.branchratemodel;
+
+import beast.base.core.Function;
+import beast.base.inference.distribution.Exponential;
+import beast.base.inference.distribution.Gamma;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.distribution.ParametricDistribution;
+
+import org.apache.commons.math.MathException;
+
+/**
+ * Fast approximations of the inverse CDF of the distributions used by the
+ * relaxed clocks:
+ * <ul>
+ * <li>LogNormal: closed form using the normal quantile of Wichura (1988)
+ * algorithm AS241, accurate to about 1e-16,</li>
+ * <li>Exponential: closed form,</li>
+ * <li>Gamma: cubic Hermite interpolation of a table of the log of the exact
+ * quantiles in the normal score scale. The table is refined until the relative error at the
+ * quarters of every interval is below the tolerance. It is built for a unit scale, as the
+ * quantiles are proportional to the scale, so it is only rebuilt when the shape changes.</li>
+ * </ul>
+ * The parameters of the closed forms are recovered from a few exact quantiles so
+ * that they do not depend on the parametrisation of the distribution.
+ */
+public abstract class FastInverseCDF {
+
+    protected final ParametricDistribution distribution;
+
+    protected FastInverseCDF(ParametricDistribution distribution) {
+        this.distribution = distribution;
+    }
+
+    /**
+     * @param distribution rate distribution
+     * @param tolerance    maximum relative error of tabulated approximations
+     * @return an approximation of the inverse CDF of distribution, null if this
+     *         distribution is not supported
+     */
+    public static FastInverseCDF create(ParametricDistribution distribution, double tolerance) {
+        if (distribution instanceof LogNormalDistributionModel) {
+            return new LogNormal(distribution);
+        } else if (distribution instanceof Exponential) {
+            return new Exp(distribution);
+        } else if (distribution instanceof Gamma) {
+            return new GammaTable((Gamma) distribution, tolerance);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the current parameters of the distribution. Must be called after the
+     * distribution changed and before inverseCumulativeProbability.
+     */
+    public abstract void update() throws MathException;
+
+    public abstract double inverseCumulativeProbability(double p) throws MathException;
+
+    /**
+     * Sets x[i] to the quantile of p[i] for the first count entries. Gives the
+     * same results as inverseCumulativeProbability.
+     */
+    public void inverseCumulativeProbabilities(double[] p, double[] x, int count) throws MathException {
+        for (int i = 0; i < count; i++) {
+            x[i] = inverseCumulativeProbability(p[i]);
+        }
+    }
+
+    protected double getOffset() {
+        Double offset = distribution.offsetInput.get();
+        return offset == null ? 0.0 : offset;
+    }
+
+    // standard normal CDF at 1
+    private static final double PHI_1 = 0.8413447460685429;
+
+    private static class LogNormal extends FastInverseCDF {
+
+        private double offset;
+        private double mu;
+        private double sigma;
+
+        LogNormal(ParametricDistribution distribution) {
+            super(distribution);
+        }
+
+        @Override
+        public void update() throws MathException {
+            offset = getOffset();
+            mu = Math.log(distribution.inverseCumulativeProbability(0.5) - offset);
+            sigma = Math.log(distribution.inverseCumulativeProbability(PHI_1) - offset) - mu;
+        }
+
+        @Override
+        public double inverseCumulativeProbability(double p) {
+            return offset + Math.exp(mu + sigma * normalQuantile(p));
+        }
+
+        @Override
+        public void inverseCumulativeProbabilities(double[] p, double[] x, int count) {
+            normalQuantiles(p, x, count);
+            for (int i = 0; i < count; i++) {
+                x[i] = offset + Math.exp(mu + sigma * x[i]);
+            }
+        }
+    }
+
+    private static class Exp extends FastInverseCDF {
+
+        private double offset;
+        private double mean;
+
+        Exp(ParametricDistribution distribution) {
+            super(distribution);
+        }
+
+        @Override
+        public void update() throws MathException {
+            offset = getOffset();
+            // the quantile 1-1/e of an exponential distribution is its mean
+            mean = distribution.inverseCumulativeProbability(-Math.expm1(-1.0)) - offset;
+        }
+
+        @Override
+        public double inverseCumulativeProbability(double p) {
+            return offset - mean * Math.log1p(-p);
+        }
+
+        @Override
+        public void inverseCumulativeProbabilities(double[] p, double[] x, int count) {
+            for (int i = 0; i < count; i++) {
+                x[i] = offset - mean * Math.log1p(-p[i]);
+            }
+        }
+    }
+
+    private static class GammaTable extends FastInverseCDF {
+
+        // quantiles outside [P_MIN, 1 - P_MIN] are computed exactly
+        private static final double P_MIN = 1e-10;
+        private static final int MIN_INTERVALS = 32;
+        private static final int MAX_INTERVALS = 2048;
+
+        private final Gamma gamma;
+        private final double tolerance;
+
+        private double offset;
+        private double scale;
+
+        // the current table and the previous one, which is reused when a proposal
+        // is rejected and the parameters go back to their previous values
+        private Table table;
+        private Table previousTable;
+
+        GammaTable(Gamma gamma, double tolerance) {
+            super(gamma);
+            this.gamma = gamma;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        public void update() throws MathException {
+            offset = getOffset();
+            scale = getScale();
+            double[] key = getKey();
+            if (table != null && table.hasKey(key)) {
+                return;
+            }
+            if (previousTable != null && previousTable.hasKey(key)) {
+                Table tmp = table;
+                table = previousTable;
+                previousTable = tmp;
+                return;
+            }
+            previousTable = table;
+            table = new Table(key);
+            table.build();
+        }
+
+        // the shape, the quantiles of the unit scale distribution only depend on it
+        private double[] getKey() {
+            return new double[] { getValue(gamma.alphaInput.get(), Double.NaN), getMode().ordinal() };
+        }
+
+        // scale of the distribution in every mode, as in Gamma
+        private double getScale() {
+            double beta = getValue(gamma.betaInput.get(), 1.0);
+            switch (getMode()) {
+            case ShapeRate:
+                return 1.0 / beta;
+            case ShapeMean:
+                return beta / getValue(gamma.alphaInput.get(), 1.0);
+            case OneParameter:
+                return 1.0 / getValue(gamma.alphaInput.get(), 1.0);
+            default:
+                return beta;
+            }
+        }
+
+        private Gamma.mode getMode() {
+            return gamma.modeInput.get() == null ? Gamma.mode.ShapeScale : gamma.modeInput.get();
+        }
+
+        private double getValue(Function function, double defaultValue) {
+            return function == null ? defaultValue : function.getArrayValue();
+        }
+
+        @Override
+        public double inverseCumulativeProbability(double p) throws MathException {
+            if (!table.valid || p < P_MIN || p > 1.0 - P_MIN) {
+                return distribution.inverseCumulativeProbability(p);
+            }
+            return offset + scale * table.interpolate(p);
+        }
+
+        // Quantiles of the gamma distribution with the shape of the key and a unit
+        // scale, built from the current distribution
+        private class Table {
+
+            final double[] key;
+            boolean valid;
+
+            // normal scores of the nodes, logs of the unit scale quantiles and their
+            // derivatives with respect to the normal scores
+            double[] u;
+            double[] y;
+            double[] dy;
+
+            Table(double[] key) {
+                this.key = key;
+            }
+
+            boolean hasKey(double[] other) {
+                for (int i = 0; i < key.length; i++) {
+                    if (Double.compare(key[i], other[i]) != 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            void build() throws MathException {
+                for (int intervals = MIN_INTERVALS; intervals <= MAX_INTERVALS; intervals *= 2) {
+                    fill(intervals);
+                    valid = true;
+                    if (maxRelativeError(intervals) <= tolerance) {
+                        return;
+                    }
+                }
+                valid = false;
+            }
+
+            // nodes roughly equally spaced in the normal score scale
+            void fill(int intervals) throws MathException {
+                u = new double[intervals + 1];
+                y = new double[intervals + 1];
+                dy = new double[intervals + 1];
+                double uMax = -normalQuantile(P_MIN);
+                for (int i = 0; i <= intervals; i++) {
+                    double p;
+                    if (i == 0) {
+                        p = P_MIN;
+                    } else if (i == intervals) {
+                        p = 1.0 - P_MIN;
+                    } else {
+                        p = approximateNormalCDF(-uMax + 2.0 * uMax * i / intervals);
+                    }
+                    u[i] = normalQuantile(p);
+                    double x = distribution.inverseCumulativeProbability(p) - offset;
+                    y[i] = Math.log(x / scale);
+                    // dy/du = dy/dx * dx/dp * dp/du
+                    double density = distribution.density(x + offset);
+                    dy[i] = normalDensity(u[i]) / (x * density);
+                }
+                for (int i = 0; i <= intervals; i++) {
+                    if (!Double.isFinite(dy[i])) {
+                        // use the slope of the neighbouring nodes instead
+                        int lo = Math.max(i - 1, 0);
+                        int hi = Math.min(i + 1, intervals);
+                        dy[i] = (y[hi] - y[lo]) / (u[hi] - u[lo]);
+                    }
+                }
+            }
+
+            double maxRelativeError(int intervals) throws MathException {
+                double maxError = 0;
+                for (int i = 0; i < intervals; i++) {
+                    // the quarters of the interval in the normal score scale, in the tails
+                    // its middle in probability is close to one of its ends
+                    for (int k = 1; k < 4; k++) {
+                        double p = approximateNormalCDF(u[i] + 0.25 * k * (u[i + 1] - u[i]));
+                        double exact = (distribution.inverseCumulativeProbability(p) - offset) / scale;
+                        double error = Math.abs(interpolate(p) - exact) / Math.abs(exact);
+                        if (!(error <= maxError)) {
+                            // also catches NaN
+                            maxError = Double.isNaN(error) ? Double.POSITIVE_INFINITY : error;
+                        }
+                    }
+                }
+                return maxError;
+            }
+
+            double interpolate(double p) {
+                double score = normalQuantile(p);
+                // binary search of the interval containing score
+                int lo = 0;
+                int hi = u.length - 1;
+                while (hi - lo > 1) {
+                    int mid = (lo + hi) >>> 1;
+                    if (u[mid] <= score) {
+                        lo = mid;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                double h = u[hi] - u[lo];
+                double t = (score - u[lo]) / h;
+                double t2 = t * t;
+                double t3 = t2 * t;
+                double value = (2 * t3 - 3 * t2 + 1) * y[lo] + (t3 - 2 * t2 + t) * h * dy[lo]
+                        + (-2 * t3 + 3 * t2) * y[hi] + (t3 - t2) * h * dy[hi];
+                return Math.exp(value);
+            }
+        }
+    }
+
+    private static double normalDensity(double u) {
+        return Math.exp(-0.5 * u * u) / Math.sqrt(2.0 * Math.PI);
+    }
+
+    // Abramowitz and Stegun 26.2.17, only used to place the nodes of the tables
+    private static double approximateNormalCDF(double u) {
+        double x = Math.abs(u);
+        double t = 1.0 / (1.0 + 0.2316419 * x);
+        double tail = normalDensity(x) * t
+                * (0.319381530 + t * (-0.356563782 + t * (1.781477937 + t * (-1.821255978 + t * 1.330274429))));
+        return u < 0 ? tail : 1.0 - tail;
+    }
+
+    /**
+     * Sets z[i] to the normal quantile of p[i] for the first count entries. The
+     * central region, where most quantiles fall, is evaluated for every entry in
+     * a loop without branches that the JIT compiler can vectorize, and the tails
+     * are fixed up afterwards.
+     */
+    public static void normalQuantiles(double[] p, double[] z, int count) {
+        for (int i = 0; i < count; i++) {
+            z[i] = centralNormalQuantile(p[i] - 0.5);
+        }
+        for (int i = 0; i < count; i++) {
+            if (Math.abs(p[i] - 0.5) > 0.425) {
+                z[i] = normalQuantile(p[i]);
+            }
+        }
+    }
+
+    /**
+     * Quantile of the standard normal distribution, Wichura (1988) algorithm
+     * AS241 PPND16.
+     */
+    public static double normalQuantile(double p) {
+        double q = p - 0.5;
+        if (Math.abs(q) <= 0.425) {
+            return centralNormalQuantile(q);
+        }
+        double r = q < 0 ? p : 1.0 - p;
+        if (r <= 0) {
+            return q < 0 ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        r = Math.sqrt(-Math.log(r));
+        double value;
+        if (r <= 5.0) {
+            r -= 1.6;
+            value = (((((((7.74545014278341407640e-4 * r + 2.27238449892691845833e-2) * r
+                    + 2.41780725177450611770e-1) * r + 1.27045825245236838258e+0) * r
+                    + 3.64784832476320460504e+0) * r + 5.76949722146069140550e+0) * r
+                    + 4.63033784615654529590e+0) * r + 1.42343711074968357734e+0)
+                    / (((((((1.05075007164441684324e-9 * r + 5.47593808499534494600e-4) * r
+                            + 1.51986665636164571966e-2) * r + 1.48103976427480074590e-1) * r
+                            + 6.89767334985100004550e-1) * r + 1.67638483018380384940e+0) * r
+                            + 2.05319162663775882187e+0) * r + 1.0);
+        } else {
+            r -= 5.0;
+            value = (((((((2.01033439929228813265e-7 * r + 2.71155556874348757815e-5) * r
+                    + 1.24266094738807843860e-3) * r + 2.65321895265761230930e-2) * r
+                    + 2.96560571828504891230e-1) * r + 1.78482653991729133580e+0) * r
+                    + 5.46378491116411436990e+0) * r + 6.65790464350110377720e+0)
+                    / (((((((2.04426310338993978564e-15 * r + 1.42151175831644588870e-7) * r
+                            + 1.84631831751005468180e-5) * r + 7.86869131145613259100e-4) * r
+                            + 1.48753612908506148525e-2) * r + 1.36929880922735805310e-1) * r
+                            + 5.99832206555887937690e-1) * r + 1.0);
+        }
+        return q < 0 ? -value : value;
+    }
+
+    // normal quantile of 0.5 + q for |q| <= 0.425
+    private static double centralNormalQuantile(double q) {
+        double r = 0.180625 - q * q;
+        return q * (((((((2.5090809287301226727e+3 * r + 3.3430575583588128105e+4) * r
+                + 6.7265770927008700853e+4) * r + 4.5921953931549871457e+4) * r
+                + 1.3731693765509461125e+4) * r + 1.9715909503065514427e+3) * r
+                + 1.3314166789178437745e+2) * r + 3.3871328727963666080e+0)
+                / (((((((5.2264952788528545610e+3 * r + 2.8729085735721942674e+4) * r
+                        + 3.9307895800092710610e+4) * r + 2.1213794301586595867e+4) * r
+                        + 5.3941960214247511077e+3) * r + 6.8718700749205790830e+2) * r
+                        + 4.2313330701600911252e+1) * r + 1.0);
+    }
+}
@@ -1,23 +1,30 @@
 package mf.beast.evolution.branchratemodel;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
+import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.BooleanParameter;
 
 @Description("Defines a flexible local clock model.")
 @Citation(value = "Fourment M and Darling AE (2018) Local and relaxed clocks: the best of both worlds\n"
         + "  PeerJ 6:e5140", DOI = "10.7717/peerj.5140", year = 2018, firstAuthorSurname = "fourment")
-public class FlexibleLocalClockModel extends BranchRateModel.Base {
+public class FlexibleLocalClockModel extends BranchRateModel.Base implements BranchRateGradient, ClockMetricsSource {
 
     public Input<LineageRateModel> rootRateModelInput = new Input<LineageRateModel>("rootClockModel",
             "the branch rate model for branches that do not belong to a local clock.", Input.Validate.REQUIRED);
@@ -26,89 +33,340 @@ public class FlexibleLocalClockModel extends BranchRateModel.Base {
 
     public Input<Tree> treeInput = new Input<Tree>("tree", "the tree this local clock is associated with.",
             Input.Validate.REQUIRED);
+    public Input<BooleanParameter> cladeIndicatorsInput = new Input<BooleanParameter>("cladeIndicators",
+            "one indicator per cladeClockModel, a clade clock is only used while its indicator is true. "
+                    + "Sampling the indicators (e.g. with LocalClockPlacementOperator) samples the number and "
+                    + "placement of the local clocks among the candidate clades (default all the clade clocks are used).");
 
     private LineageRateModel rootRateModel;
     private List<CladeRateModel> cladeRateModels;
     Tree tree;
 
-    private Map<Integer, BranchRateModel> nodeClockMap = new HashMap<Integer, BranchRateModel>();
-
-    private Map<Integer, BranchRateModel> nodeClockMapStored = new HashMap<Integer, BranchRateModel>();
+    // clocks[0] is the root clock, clocks[i+1] is the i-th clade clock
+    private BranchRateModel[] clocks;
+
+    // node number -> index in clocks (-1 while unassigned)
+    private int[] nodeClockIndex;
+
+    private int[] storedNodeClockIndex;
+
+    // rates of every node for each clock, used by getRatesForAllBranches
+    private double[][] clockRates;
+
+    // derivatives with respect to the rates of the branches of one clock, used by
+    // addGradient
+    private double[] clockGradient;
+
+    // Per node clade match, maintained so that updateNodeIndex only needs to
+    // revisit the nodes whose set of descendant taxa changed.
+    // nodeHash: hash of the descendant taxa (see TaxonIndex)
+    // cladeMatch: clock index of the first clade whose taxon set is exactly the
+    // descendants of the node (-1 if none), matchStem: includeStem of that clade
+    private long[] nodeHash;
+    private int[] leafCount;
+    private int[] cladeMatch;
+    private boolean[] matchStem;
+
+    private long[] storedNodeHash;
+    private int[] storedLeafCount;
+    private int[] storedCladeMatch;
+    private boolean[] storedMatchStem;
+
+    private TaxonIndex taxonIndex;
+
+    // hash of a taxon set -> entry, one entry per (clade, taxon set) pair
+    private CladeHashMap cladeLookup;
+    private int[] entryClock;
+    private int[] entrySize;
+    private boolean[] entryStem;
+    private long[] entryHash;
+    // next entry with the same hash, -1 for the last one
+    private int[] entryNext;
+    // entries of each clade clock
+    private int[] clockFirstEntry;
+
+    // clock index -> true if the clock is used, the root clock always is
+    private BooleanParameter cladeIndicators;
+    private boolean[] clockActive;
+    private boolean[] storedClockActive;
+
+    // nodes on the path from a node touched by a tree operator to the root are
+    // marked with the current epoch
+    private int[] pathEpoch;
+    private int epoch = 0;
+
+    // scratch buffers of the traversals, one entry per node
+    private int[] order;
+    private int[] stack;
+
+    // set by updateClockIndex when a branch enters or leaves the root clock
+    private boolean rootClockChanged;
+    // true if the branches of the root clock were reassigned since the last
+    // store(). A change of indicators does not make BEAST store or restore the
+    // root clock, so restore() passes it the branches of the stored state again
+    private boolean rootClockAssigned;
+
+    private final Map<Integer, BranchRateModel> clockMapView = new ClockMapView();
+
+    // null until enableMetrics() is called, before the chain starts
+    private ClockMetrics metrics;
 
     @Override
     protected boolean requiresRecalculation() {
-        if (isStrictClockLineage(rootRateModel) && isStrictClockClade(cladeRateModels)) {
-            // update node indices for strict clock models only
-            updateNodeIndex();
+        // the relaxed clock models keep the rate categories of the branches that
+        // stay in their clade or lineage, so the assignment can always be updated
+        updateNodeIndex();
+        boolean placementChanged = updateClockPlacement();
+
+        // the clock assignment only depends on the tree and the indicators, the
+        // rates on the clocks
+        if (tree.somethingIsDirty() || placementChanged || isDirty(rootRateModel)) {
+            return true;
         }
-        return true;
+        for (CladeRateModel cladeRateModel : cladeRateModels) {
+            if (isDirty(cladeRateModel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDirty(BranchRateModel rateModel) {
+        return rateModel instanceof CalculationNode && ((CalculationNode) rateModel).isDirtyCalculation();
     }
 
     @Override
     protected void store() {
-        // store nodeClockMap
-        nodeClockMapStored = nodeClockMap;
+        // store nodeClockIndex
+        copyToStored();
+        rootClockAssigned = false;
         super.store();
     }
 
+    private void copyToStored() {
+        System.arraycopy(nodeClockIndex, 0, storedNodeClockIndex, 0, nodeClockIndex.length);
+        System.arraycopy(nodeHash, 0, storedNodeHash, 0, nodeHash.length);
+        System.arraycopy(leafCount, 0, storedLeafCount, 0, leafCount.length);
+        System.arraycopy(cladeMatch, 0, storedCladeMatch, 0, cladeMatch.length);
+        System.arraycopy(matchStem, 0, storedMatchStem, 0, matchStem.length);
+        System.arraycopy(clockActive, 0, storedClockActive, 0, clockActive.length);
+    }
+
     @Override
     protected void restore() {
-        // restore nodeClockMap
-        nodeClockMap = nodeClockMapStored;
+        // restore nodeClockIndex
+        int[] tmp = nodeClockIndex;
+        nodeClockIndex = storedNodeClockIndex;
+        storedNodeClockIndex = tmp;
+
+        long[] tmpHash = nodeHash;
+        nodeHash = storedNodeHash;
+        storedNodeHash = tmpHash;
+
+        tmp = leafCount;
+        leafCount = storedLeafCount;
+        storedLeafCount = tmp;
+
+        tmp = cladeMatch;
+        cladeMatch = storedCladeMatch;
+        storedCladeMatch = tmp;
+
+        boolean[] tmpStem = matchStem;
+        matchStem = storedMatchStem;
+        storedMatchStem = tmpStem;
+
+        tmpStem = clockActive;
+        clockActive = storedClockActive;
+        storedClockActive = tmpStem;
+
+        if (rootClockAssigned) {
+            assignRootClockNodes();
+            rootClockAssigned = false;
+        }
         super.restore();
     }
 
+    /**
+     * Updates the clock assignment after a change of topology. Only the nodes on
+     * the path from the nodes touched by the operator to the root are re-matched
+     * against the clades, and the clock assignment is patched in place.
+     */
     public void updateNodeIndex() {
         cladeRateModels = cladeRateModelInputs.get();
         rootRateModel = rootRateModelInput.get();
 
-        nodeClockMap = new HashMap<Integer, BranchRateModel>();
-        nodeClockMap.put(tree.getRoot().getNr(), rootRateModel);
-        postorderTraverse(tree.getRoot());
-        preorderTraverse(tree.getRoot());
-        // node assignments
-        Set<Node> nodes = new HashSet<Node>();
-        for (Integer nodeNr : nodeClockMap.keySet()) {
-            if (nodeClockMap.get(nodeNr).equals(rootRateModel) && nodeNr != tree.getRoot().getNr()) {
-                Node node = tree.getNode(nodeNr);
-                nodes.add(node);
+        if (!tree.somethingIsDirty()) {
+            return;
+        }
+
+        epoch++;
+        boolean topologyChanged = false;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Node node = tree.getNode(i);
+            if ((node.isDirty() & Tree.IS_FILTHY) != 0) {
+                topologyChanged = true;
+                markPath(node);
             }
         }
-        rootRateModel.initializeNodeAssignment(nodes);
-    }
+        if (!topologyChanged) {
+            return;
+        }
 
-    private boolean isStrictClockLineage(LineageRateModel model) {
-        return model instanceof StrictLineageClockModel;
+        ClockEvents.UpdateNodeIndex event = new ClockEvents.UpdateNodeIndex();
+        event.begin();
+        long start = ClockMetrics.start(metrics);
+        rootClockChanged = false;
+        updateCladeMatch();
+        int changedCount = updateClockIndex();
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.UPDATE_NODE_INDEX, start);
+        if (event.shouldCommit()) {
+            event.set(tree.getNodeCount(), clocks.length, changedCount);
+            event.commit();
+        }
+        // a new root leaves the set of root clock branches
+        if (rootClockChanged || (tree.getRoot().isDirty() & Tree.IS_FILTHY) != 0) {
+            assignRootClockNodes();
+        }
     }
 
-    private boolean isStrictClockClade(List<CladeRateModel> cladeList) {
-        for (CladeRateModel model : cladeList) {
-            if (!(model instanceof StrictCladeModel)) {
-                return false;
+    /**
+     * Switches the clade clocks on and off after a change of the indicators. Only
+     * the nodes whose taxa are a taxon set of a switched clock are re-matched and
+     * the clock assignment is patched below them.
+     *
+     * @return true if a clock was switched
+     */
+    private boolean updateClockPlacement() {
+        if (cladeIndicators == null) {
+            return false;
+        }
+        epoch++;
+        boolean changed = false;
+        for (int c = 1; c < clocks.length; c++) {
+            boolean active = cladeIndicators.getValue(c - 1);
+            if (active == clockActive[c]) {
+                continue;
+            }
+            clockActive[c] = active;
+            changed = true;
+            for (int entry = clockFirstEntry[c]; entry < clockFirstEntry[c + 1]; entry++) {
+                if (entrySize[entry] == -1) {
+                    continue;
+                }
+                for (int nodeNr = 0; nodeNr < nodeHash.length; nodeNr++) {
+                    if (nodeHash[nodeNr] == entryHash[entry] && leafCount[nodeNr] == entrySize[entry]) {
+                        matchClade(tree.getNode(nodeNr));
+                        markPath(tree.getNode(nodeNr));
+                    }
+                }
             }
         }
+        if (!changed) {
+            return false;
+        }
+
+        rootClockChanged = false;
+        updateClockIndex();
+        if (rootClockChanged) {
+            assignRootClockNodes();
+        }
         return true;
     }
 
+    // mark the nodes from node to the root with the current epoch
+    private void markPath(Node node) {
+        while (node != null && pathEpoch[node.getNr()] != epoch) {
+            pathEpoch[node.getNr()] = epoch;
+            node = node.getParent();
+        }
+    }
+
+    // Rebuild the clock assignment from scratch and pass the branches of the root
+    // clock to rootRateModel
+    private void assignClocks() {
+        int count = preorder(false);
+        postorderTraverse(count);
+        Arrays.fill(nodeClockIndex, -1);
+        preorderTraverse(count);
+        assignRootClockNodes();
+    }
+
+    private void assignRootClockNodes() {
+        long start = ClockMetrics.start(metrics);
+        int rootNr = tree.getRoot().getNr();
+        Set<Node> nodes = new HashSet<Node>();
+        for (int nodeNr = 0; nodeNr < nodeClockIndex.length; nodeNr++) {
+            if (nodeClockIndex[nodeNr] == 0 && nodeNr != rootNr) {
+                nodes.add(tree.getNode(nodeNr));
+            }
+        }
+        rootRateModel.initializeNodeAssignment(nodes);
+        rootClockAssigned = true;
+        ClockMetrics.stop(metrics, ClockMetrics.Counter.INITIALIZE_NODE_ASSIGNMENT, start);
+    }
+
+    /**
+     * Counts the incremental updates of the clock assignment after topology
+     * changes and the reassignments of the root clock branches. The counters of
+     * the clocks themselves are enabled separately.
+     */
+    @Override
+    public ClockMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ClockMetrics(ClockMetrics.Counter.UPDATE_NODE_INDEX,
+                    ClockMetrics.Counter.INITIALIZE_NODE_ASSIGNMENT);
+        }
+        return metrics;
+    }
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
         cladeRateModels = cladeRateModelInputs.get();
         rootRateModel = rootRateModelInput.get();
 
-        nodeClockMap.put(tree.getRoot().getNr(), rootRateModel);
-        postorderTraverse(tree.getRoot());
-        preorderTraverse(tree.getRoot());
+        clocks = new BranchRateModel[cladeRateModels.size() + 1];
+        clocks[0] = rootRateModel;
+        for (int i = 0; i < cladeRateModels.size(); i++) {
+            clocks[i + 1] = cladeRateModels.get(i);
+        }
 
-        Set<Node> nodes = new HashSet<Node>();
-        for (Integer nodeNr : nodeClockMap.keySet()) {
-            if (nodeClockMap.get(nodeNr).equals(rootRateModel) && nodeNr != tree.getRoot().getNr()) {
-                Node node = tree.getNode(nodeNr);
-                nodes.add(node);
-            }
+        int nodeCount = tree.getNodeCount();
+        nodeClockIndex = new int[nodeCount];
+        storedNodeClockIndex = new int[nodeCount];
+        leafCount = new int[nodeCount];
+        storedLeafCount = new int[nodeCount];
+        cladeMatch = new int[nodeCount];
+        storedCladeMatch = new int[nodeCount];
+        matchStem = new boolean[nodeCount];
+        storedMatchStem = new boolean[nodeCount];
+        nodeHash = new long[nodeCount];
+        storedNodeHash = new long[nodeCount];
+        pathEpoch = new int[nodeCount];
+        order = new int[nodeCount];
+        stack = new int[nodeCount];
+        clockRates = new double[clocks.length][nodeCount];
+        clockGradient = new double[nodeCount];
+
+        setUpCladeLookup();
+
+        clockActive = new boolean[clocks.length];
+        storedClockActive = new boolean[clocks.length];
+        cladeIndicators = cladeIndicatorsInput.get();
+        if (cladeIndicators != null && cladeIndicators.getDimension() != cladeRateModels.size()) {
+            cladeIndicators.setDimension(cladeRateModels.size());
+        }
+        for (int c = 0; c < clocks.length; c++) {
+            clockActive[c] = c == 0 || cladeIndicators == null || cladeIndicators.getValue(c - 1);
+        }
+        if (cladeIndicators != null) {
+            // every branch can join the root clock as the clades are switched off
+            rootRateModel.keepSlotsForAllBranches();
         }
 
-        rootRateModel.initializeNodeAssignment(nodes);
+        assignClocks();
+        copyToStored();
+        rootClockAssigned = false;
     }
 
     @Override
@@ -117,82 +375,297 @@ public class FlexibleLocalClockModel extends BranchRateModel.Base {
             return 1;
         }
 
-        BranchRateModel clock = nodeClockMap.get(node.getNr());
-        return clock.getRateForBranch(node);
+        return clocks[nodeClockIndex[node.getNr()]].getRateForBranch(node);
     }
 
-    // Set up nodeClockMap for every MRCA node of each cladeRateModel
-    // Other nodes are set up in preorderTraverse
-    private Set<String> postorderTraverse(Node node) {
-        Set<String> descendants = new HashSet<String>();
+    /**
+     * Sets rates[i] to the rate of the branch above the node with number i. Every
+     * clock fills its whole vector once and the rates are then picked by node
+     * number, the rate of the root is 1.
+     */
+    public void getRatesForAllBranches(double[] rates) {
+        rootRateModel.getRatesForAllBranches(clockRates[0]);
+        for (int i = 0; i < cladeRateModels.size(); i++) {
+            cladeRateModels.get(i).getRatesForAllBranches(clockRates[i + 1]);
+        }
 
-        if (node.isLeaf()) {
-            descendants.add(node.getID());
+        int rootNr = tree.getRoot().getNr();
+        for (int i = 0; i < nodeClockIndex.length; i++) {
+            rates[i] = i == rootNr ? 1 : clockRates[nodeClockIndex[i]][i];
+        }
+    }
 
-            // Check if a cladeRateModel is assigned to this leaf only
-            // includeStem is not checked since it is assumed to be true (otherwise the
-            // cladeRateModel is useless)
-            for (CladeRateModel rateModel : cladeRateModels) {
-                int i = 0;
-                for (; i < rateModel.getTaxonSetCount(); i++) {
-                    if (rateModel.getTaxonSet(i).getTaxaNames().equals(descendants)) {
-                        nodeClockMap.put(node.getNr(), rateModel);
-                        break;
-                    }
-                }
-                if (i != rateModel.getTaxonSetCount()) {
-                    break;
-                }
+    /**
+     * Adds the gradients of the clocks, each clock only receives the derivatives
+     * of its own branches. A parameter shared by several clocks gets the sum of
+     * their contributions.
+     */
+    @Override
+    public void addGradient(double[] branchGradient, Function parameter, double[] gradient) {
+        int rootNr = tree.getRoot().getNr();
+        for (int c = 0; c < clocks.length; c++) {
+            if (!(clocks[c] instanceof BranchRateGradient)) {
+                throw new IllegalArgumentException(
+                        "Clock " + clocks[c].getClass().getName() + " does not provide gradients");
+            }
+            for (int i = 0; i < nodeClockIndex.length; i++) {
+                clockGradient[i] = i != rootNr && nodeClockIndex[i] == c ? branchGradient[i] : 0.0;
             }
-        } else {
+            ((BranchRateGradient) clocks[c]).addGradient(clockGradient, parameter, gradient);
+        }
+    }
 
-            for (int i = 0; i < node.getChildCount(); i++) {
-                Set<String> childSet = postorderTraverse(node.getChild(i));
-                descendants.addAll(childSet);
+    /**
+     * @return true if the rate of the branch above the node with number nodeNr
+     *         changed since the last store(), because the branch moved to
+     *         another clock or its clock reports it as dirty
+     */
+    public boolean isBranchDirty(int nodeNr) {
+        if (tree.getNode(nodeNr).isRoot()) {
+            return false;
+        }
+        int clock = nodeClockIndex[nodeNr];
+        if (clock != storedNodeClockIndex[nodeNr]) {
+            return true;
+        }
+        if (clock == 0) {
+            return rootRateModel.isBranchDirty(nodeNr);
+        }
+        return cladeRateModels.get(clock - 1).isBranchDirty(nodeNr);
+    }
+
+    /**
+     * Sets the first entries of dirtyNodeNrs to the numbers of the nodes whose
+     * branch rate changed since the last store().
+     *
+     * @return the number of such nodes
+     */
+    public int getDirtyBranches(int[] dirtyNodeNrs) {
+        int count = 0;
+        for (int i = 0; i < nodeClockIndex.length; i++) {
+            if (isBranchDirty(i)) {
+                dirtyNodeNrs[count++] = i;
             }
+        }
+        return count;
+    }
 
-            if (!node.isRoot()) {
-                for (CladeRateModel rateModel : cladeRateModels) {
-                    int i = 0;
-                    for (; i < rateModel.getTaxonSetCount(); i++) {
-                        if (rateModel.getTaxonSet(i).getTaxaNames().equals(descendants)) {
-                            // Here starts a new clock
-                            if (rateModel.includeStem(i)) {
-                                nodeClockMap.put(node.getNr(), rateModel);
-                            }
-                            // node will inherit its clock AND its children get the same new clock
-                            else {
-                                for (int j = 0; j < node.getChildCount(); j++) {
-                                    nodeClockMap.put(node.getChild(j).getNr(), rateModel);
-                                }
-                            }
-                            break;
+    // Index the taxon sets of the clade models by hash. Clades are inserted in
+    // order and clades with the same hash are chained, so that the first active
+    // clade matching a node wins.
+    private void setUpCladeLookup() {
+        taxonIndex = MRCAIndex.forTree(tree).getTaxonIndex();
+
+        int entryCount = 0;
+        for (CladeRateModel rateModel : cladeRateModels) {
+            entryCount += rateModel.getTaxonSetCount();
+        }
+        cladeLookup = new CladeHashMap(entryCount);
+        entryClock = new int[entryCount];
+        entrySize = new int[entryCount];
+        entryStem = new boolean[entryCount];
+        entryHash = new long[entryCount];
+        entryNext = new int[entryCount];
+        clockFirstEntry = new int[clocks.length + 1];
+
+        int entry = 0;
+        for (int c = 0; c < cladeRateModels.size(); c++) {
+            CladeRateModel rateModel = cladeRateModels.get(c);
+            clockFirstEntry[c + 1] = entry;
+            for (int i = 0; i < rateModel.getTaxonSetCount(); i++) {
+                Set<String> taxa = rateModel.getTaxonSet(i).getTaxaNames();
+                entryClock[entry] = c + 1;
+                entrySize[entry] = taxa.size();
+                entryStem[entry] = rateModel.includeStem(i);
+                entryNext[entry] = -1;
+                // a taxon set with taxa missing from the tree never matches a node
+                if (taxonIndex.containsAll(taxa)) {
+                    entryHash[entry] = taxonIndex.hashOf(taxa);
+                    if (!cladeLookup.putIfAbsent(entryHash[entry], entry)) {
+                        int last = cladeLookup.get(entryHash[entry]);
+                        while (entryNext[last] != -1) {
+                            last = entryNext[last];
                         }
+                        entryNext[last] = entry;
                     }
-                    if (i != rateModel.getTaxonSetCount()) {
-                        break;
-                    }
+                } else {
+                    entrySize[entry] = -1;
+                }
+                entry++;
+            }
+        }
+        clockFirstEntry[clocks.length] = entry;
+    }
+
+    // Fill order with the node numbers of the tree in preorder. If pathOnly, only
+    // the nodes on the current path are visited. Returns the number of nodes.
+    // The traversals use the preallocated order and stack buffers instead of
+    // recursion so that deep (ladder-like) trees cannot overflow the stack.
+    private int preorder(boolean pathOnly) {
+        int size = 0;
+        int top = 0;
+        stack[top++] = tree.getRoot().getNr();
+        while (top > 0) {
+            int nodeNr = stack[--top];
+            order[size++] = nodeNr;
+            Node node = tree.getNode(nodeNr);
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                int childNr = node.getChild(i).getNr();
+                if (!pathOnly || pathEpoch[childNr] == epoch) {
+                    stack[top++] = childNr;
                 }
             }
         }
-        return descendants;
+        return size;
+    }
+
+    // Set up nodeHash, leafCount, cladeMatch and matchStem for the first count
+    // nodes of order, children before parents
+    // The clocks are then assigned in preorderTraverse
+    private void postorderTraverse(int count) {
+        for (int k = count - 1; k >= 0; k--) {
+            Node node = tree.getNode(order[k]);
+            int nodeNr = node.getNr();
+            if (node.isLeaf()) {
+                nodeHash[nodeNr] = taxonIndex.getKey(node.getID());
+                leafCount[nodeNr] = 1;
+            } else {
+                sumChildren(node);
+            }
+            matchClade(node);
+        }
+    }
+
+    // Re-match the nodes on the current path, children before parents
+    private void updateCladeMatch() {
+        int count = preorder(true);
+        for (int k = count - 1; k >= 0; k--) {
+            Node node = tree.getNode(order[k]);
+            // the taxa below a leaf never change
+            if (!node.isLeaf()) {
+                sumChildren(node);
+                matchClade(node);
+            }
+        }
+    }
+
+    private void sumChildren(Node node) {
+        long hash = 0;
+        int count = 0;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            int childNr = node.getChild(i).getNr();
+            hash += nodeHash[childNr];
+            count += leafCount[childNr];
+        }
+        nodeHash[node.getNr()] = hash;
+        leafCount[node.getNr()] = count;
     }
 
-    // Set up nodeClockMap for other nodes by inheriting the parent rate model
-    private void preorderTraverse(Node node) {
+    // Find the first active clade whose taxon set is the descendants of node
+    // includeStem is not checked for leaves since it is assumed to be true
+    // (otherwise the cladeRateModel is useless) and the root never starts a clock
+    private void matchClade(Node node) {
+        int nodeNr = node.getNr();
+        cladeMatch[nodeNr] = -1;
+        if (node.isRoot()) {
+            return;
+        }
+        int entry = cladeLookup.get(nodeHash[nodeNr]);
+        while (entry != -1 && (entrySize[entry] != leafCount[nodeNr] || !clockActive[entryClock[entry]])) {
+            entry = entryNext[entry];
+        }
+        if (entry != -1) {
+            cladeMatch[nodeNr] = entryClock[entry];
+            matchStem[nodeNr] = node.isLeaf() || entryStem[entry];
+        }
+    }
 
-        if (!nodeClockMap.containsKey(node.getNr())) {
-            nodeClockMap.put(node.getNr(), nodeClockMap.get(node.getParent().getNr()));
+    // Clock starting on the branch above node, -1 if the node inherits the clock of
+    // its parent. A clade without stem starts the clock on the branches of its
+    // children and takes precedence over a clade with stem matching the child.
+    private int getClockStart(Node node) {
+        Node parent = node.getParent();
+        if (parent != null) {
+            int parentNr = parent.getNr();
+            if (cladeMatch[parentNr] != -1 && !matchStem[parentNr]) {
+                return cladeMatch[parentNr];
+            }
         }
-        if (!node.isLeaf()) {
-            for (int i = 0; i < node.getChildCount(); i++) {
-                preorderTraverse(node.getChild(i));
+        if (cladeMatch[node.getNr()] != -1 && matchStem[node.getNr()]) {
+            return cladeMatch[node.getNr()];
+        }
+        return -1;
+    }
+
+    // Set up nodeClockIndex for the first count nodes of order (preorder): either
+    // a clock starts on its branch or it inherits the parent rate model
+    private void preorderTraverse(int count) {
+        for (int k = 0; k < count; k++) {
+            Node node = tree.getNode(order[k]);
+            int clock = node.isRoot() ? 0 : getClockStart(node);
+            if (clock == -1) {
+                clock = nodeClockIndex[node.getParent().getNr()];
             }
+            nodeClockIndex[node.getNr()] = clock;
         }
     }
 
+    // Patch nodeClockIndex from the root down. Children of nodes on the current
+    // path are always revisited, other subtrees only while their inherited clock
+    // changes. Parents are popped before their children, so the clock of the
+    // parent is already up to date. Returns the number of nodes whose clock changed.
+    private int updateClockIndex() {
+        int changedCount = 0;
+        int top = 0;
+        stack[top++] = tree.getRoot().getNr();
+        while (top > 0) {
+            int nodeNr = stack[--top];
+            Node node = tree.getNode(nodeNr);
+            int clock = node.isRoot() ? 0 : getClockStart(node);
+            if (clock == -1) {
+                clock = nodeClockIndex[node.getParent().getNr()];
+            }
+            boolean changed = nodeClockIndex[nodeNr] != clock;
+            if (changed && (nodeClockIndex[nodeNr] == 0 || clock == 0)) {
+                rootClockChanged = true;
+            }
+            nodeClockIndex[nodeNr] = clock;
+            if (changed) {
+                changedCount++;
+            }
+
+            if (changed || pathEpoch[nodeNr] == epoch) {
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    stack[top++] = node.getChild(i).getNr();
+                }
+            }
+        }
+        return changedCount;
+    }
+
+    /**
+     * @return a read-only view mapping node numbers to their clock, backed by the
+     *         current clock assignment
+     */
     public Map<Integer, BranchRateModel> getClockMap() {
-        return nodeClockMap;
+        return clockMapView;
+    }
+
+    /**
+     * @param nodeNr node number
+     * @return index of the clock of the branch above nodeNr: 0 for the root clock and
+     *         i+1 for the i-th clade clock
+     */
+    public int getClockIndex(int nodeNr) {
+        return nodeClockIndex[nodeNr];
+    }
+
+    /**
+     * @param index clock index as returned by getClockIndex
+     * @return the clock with that index
+     */
+    public BranchRateModel getClock(int index) {
+        return clocks[index];
     }
 
     // Number of local clock + ancestral clock
@@ -207,4 +680,64 @@ public class FlexibleLocalClockModel extends BranchRateModel.Base {
     public LineageRateModel getRootRateModel() {
         return rootRateModel;
     }
+
+    // Read-only Map view over nodeClockIndex so callers of getClockMap() see
+    // the current assignment without any copying
+    private class ClockMapView extends AbstractMap<Integer, BranchRateModel> {
+
+        @Override
+        public BranchRateModel get(Object key) {
+            if (key instanceof Integer) {
+                int nodeNr = (Integer) key;
+                if (nodeNr >= 0 && nodeNr < nodeClockIndex.length && nodeClockIndex[nodeNr] >= 0) {
+                    return clocks[nodeClockIndex[nodeNr]];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return nodeClockIndex.length;
+        }
+
+        @Override
+        public Set<Map.Entry<Integer, BranchRateModel>> entrySet() {
+            return new AbstractSet<Map.Entry<Integer, BranchRateModel>>() {
+
+                @Override
+                public Iterator<Map.Entry<Integer, BranchRateModel>> iterator() {
+                    return new Iterator<Map.Entry<Integer, BranchRateModel>>() {
+                        private int nodeNr = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return nodeNr < nodeClockIndex.length;
+                        }
+
+                        @Override
+                        public Map.Entry<Integer, BranchRateModel> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<Integer, BranchRateModel> entry = new AbstractMap.SimpleImmutableEntry<>(
+                                    nodeNr, clocks[nodeClockIndex[nodeNr]]);
+                            nodeNr++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return nodeClockIndex.length;
+                }
+            };
+        }
+    }
 }
@@ -16,6 +16,28 @@ public interface LineageRateModel extends BranchRateModel {
 
     public Set<Node> getNodes();
 
+    /**
+     * Called before the first initializeNodeAssignment() when the clades of the
+     * clocks are switched on and off, so that every branch of the tree can join
+     * the lineage. Models with a rate per branch then keep a slot for every
+     * branch rather than for the branches of the first assignment.
+     */
+    public default void keepSlotsForAllBranches() {
+    }
+
+    /**
+     * Sets rates[i] to the rate this model gives to the branch above the node with
+     * number i. The entries of the branches that are not assigned to this model
+     * are unspecified.
+     */
+    public void getRatesForAllBranches(double[] rates);
+
+    /**
+     * @return true if the rate of the branch above the node with number nodeNr
+     *         changed since the last store()
+     */
+    public boolean isBranchDirty(int nodeNr);
+
     @Description(value = "Base implementation of a clock model.", isInheritable = false)
     public abstract class Base extends CalculationNode implements LineageRateModel {
 
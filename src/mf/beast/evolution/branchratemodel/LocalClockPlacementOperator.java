@@ -0,0 +1,84 @@
+package mf.beast.evolution.branchratemodel;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * Birth, death and switch moves on the cladeIndicators of a
+ * FlexibleLocalClockModel. The parameters of a clade clock that is switched off
+ * are only informed by their prior, so the usual reversible-jump dimension
+ * matching is done by these auxiliary parameters and only the probabilities of
+ * choosing the moves enter the Hastings ratio.
+ */
+@Description("Samples the number and placement of the local clocks of a flexible local clock by switching the "
+        + "clocks of candidate clades on (birth), off (death) or moving a clock to another candidate (switch). "
+        + "A prior on the number of clocks can be set on the sum of the indicators.")
+public class LocalClockPlacementOperator extends Operator {
+
+    public Input<BooleanParameter> indicatorsInput = new Input<BooleanParameter>("indicators",
+            "cladeIndicators of the flexible local clock.", Validate.REQUIRED);
+
+    private static final int BIRTH = 0;
+    private static final int DEATH = 1;
+    private static final int SWITCH = 2;
+
+    private BooleanParameter indicators;
+
+    @Override
+    public void initAndValidate() {
+        indicators = indicatorsInput.get();
+    }
+
+    @Override
+    public double proposal() {
+        int candidateCount = indicators.getDimension();
+        int activeCount = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            if (indicators.getValue(i)) {
+                activeCount++;
+            }
+        }
+        int inactiveCount = candidateCount - activeCount;
+
+        switch (Randomizer.nextInt(3)) {
+        case BIRTH:
+            if (inactiveCount == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            indicators.setValue(pick(false, inactiveCount), true);
+            // the reverse death picks one of activeCount + 1 clocks
+            return Math.log(inactiveCount) - Math.log(activeCount + 1);
+        case DEATH:
+            if (activeCount == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            indicators.setValue(pick(true, activeCount), false);
+            return Math.log(activeCount) - Math.log(inactiveCount + 1);
+        case SWITCH:
+        default:
+            if (activeCount == 0 || inactiveCount == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            int off = pick(true, activeCount);
+            int on = pick(false, inactiveCount);
+            indicators.setValue(off, false);
+            indicators.setValue(on, true);
+            return 0.0;
+        }
+    }
+
+    // index of a random indicator with the given value, count indicators have it
+    private int pick(boolean value, int count) {
+        int k = Randomizer.nextInt(count);
+        for (int i = 0; i < indicators.getDimension(); i++) {
+            if (indicators.getValue(i) == value && k-- == 0) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No indicator with value " + value);
+    }
+}
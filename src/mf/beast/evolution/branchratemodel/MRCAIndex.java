@@ -0,0 +1,263 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Resolves the MRCA of sets of taxa in a tree. One instance is shared by the
+ * models of a given tree while one of them holds it (see forTree).
+ *
+ * The index stores the nodes in preorder together with a sparse table of
+ * minimum depths so that the LCA of two nodes costs O(1). The MRCA of k taxa is
+ * the LCA of the first and last of these taxa in preorder, so it costs O(k).
+ * MRCAs are cached per TaxonSet until the topology changes.
+ */
+public class MRCAIndex {
+
+    // the index refers to its tree, so it is only weakly reachable from the map
+    // for the tree to be collected
+    private static final Map<Tree, WeakReference<MRCAIndex>> instances = new WeakHashMap<>();
+
+    private final Tree tree;
+    private final TaxonIndex taxonIndex;
+
+    // taxon index -> leaf node number
+    private final int[] taxonNodeNr;
+
+    // parent node number of every node (-1 for the root) the index was built for
+    private final int[] parentNr;
+
+    private final int[] order; // node numbers in preorder
+    private final int[] position; // node number -> position in order
+    private final int[] depth;
+    private final int[] leafCount;
+
+    // sparse[j][i]: node number with the smallest depth in order[i..i+2^j-1]
+    private int[][] sparse;
+
+    private final Map<TaxonSet, Integer> mrcaCache = new IdentityHashMap<TaxonSet, Integer>();
+
+    /**
+     * @return the index shared by the models of tree, checked against the current
+     *         topology if the tree is dirty
+     */
+    public static MRCAIndex forTree(Tree tree) {
+        MRCAIndex index;
+        synchronized (instances) {
+            WeakReference<MRCAIndex> reference = instances.get(tree);
+            index = reference == null ? null : reference.get();
+            if (index == null) {
+                index = new MRCAIndex(tree);
+                instances.put(tree, new WeakReference<MRCAIndex>(index));
+                return index;
+            }
+        }
+        if (tree.somethingIsDirty()) {
+            index.update();
+        }
+        return index;
+    }
+
+    private MRCAIndex(Tree tree) {
+        this.tree = tree;
+        int nodeCount = tree.getNodeCount();
+        taxonIndex = new TaxonIndex(tree);
+        taxonNodeNr = new int[taxonIndex.getTaxonCount()];
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = tree.getNode(i);
+            if (node.isLeaf()) {
+                taxonNodeNr[taxonIndex.getIndex(node.getID())] = node.getNr();
+            }
+        }
+        parentNr = new int[nodeCount];
+        order = new int[nodeCount];
+        position = new int[nodeCount];
+        depth = new int[nodeCount];
+        leafCount = new int[nodeCount];
+        build();
+    }
+
+    /**
+     * Rebuilds the index and clears the cached MRCAs if the topology changed
+     * since the index was built. Costs O(n) when the topology did not change.
+     *
+     * @return true if the index was rebuilt
+     */
+    public synchronized boolean update() {
+        for (int i = 0; i < parentNr.length; i++) {
+            Node parent = tree.getNode(i).getParent();
+            if ((parent == null ? -1 : parent.getNr()) != parentNr[i]) {
+                build();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void build() {
+        mrcaCache.clear();
+
+        int nodeCount = parentNr.length;
+        for (int i = 0; i < nodeCount; i++) {
+            Node parent = tree.getNode(i).getParent();
+            parentNr[i] = parent == null ? -1 : parent.getNr();
+        }
+
+        // iterative preorder, order doubles as the stack of nodes left to visit
+        Node root = tree.getRoot();
+        int size = 0;
+        int top = nodeCount - 1;
+        order[top] = root.getNr();
+        depth[root.getNr()] = 0;
+        while (top < nodeCount) {
+            int nodeNr = order[top++];
+            order[size] = nodeNr;
+            position[nodeNr] = size;
+            size++;
+            Node node = tree.getNode(nodeNr);
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                int childNr = node.getChild(i).getNr();
+                depth[childNr] = depth[nodeNr] + 1;
+                order[--top] = childNr;
+            }
+        }
+
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            int nodeNr = order[i];
+            Node node = tree.getNode(nodeNr);
+            if (node.isLeaf()) {
+                leafCount[nodeNr] = 1;
+            } else {
+                int count = 0;
+                for (int j = 0; j < node.getChildCount(); j++) {
+                    count += leafCount[node.getChild(j).getNr()];
+                }
+                leafCount[nodeNr] = count;
+            }
+        }
+
+        int levels = 32 - Integer.numberOfLeadingZeros(nodeCount);
+        if (sparse == null || sparse.length != levels) {
+            sparse = new int[levels][nodeCount];
+        }
+        System.arraycopy(order, 0, sparse[0], 0, nodeCount);
+        for (int j = 1; j < levels; j++) {
+            int half = 1 << (j - 1);
+            int[] previous = sparse[j - 1];
+            int[] current = sparse[j];
+            for (int i = 0; i + (1 << j) <= nodeCount; i++) {
+                int a = previous[i];
+                int b = previous[i + half];
+                current[i] = depth[a] <= depth[b] ? a : b;
+            }
+        }
+    }
+
+    // node number with the smallest depth in order[from..to]
+    private int minDepth(int from, int to) {
+        int j = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+        int a = sparse[j][from];
+        int b = sparse[j][to - (1 << j) + 1];
+        return depth[a] <= depth[b] ? a : b;
+    }
+
+    /**
+     * @return node number of the LCA of the nodes numbered a and b
+     */
+    public synchronized int getLCA(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+        int pa = position[a];
+        int pb = position[b];
+        if (pa > pb) {
+            int tmp = pa;
+            pa = pb;
+            pb = tmp;
+        }
+        // the shallowest node strictly after a and up to b in preorder is a child
+        // of the LCA on the path to b
+        return parentNr[minDepth(pa + 1, pb)];
+    }
+
+    public Node getLCA(Node a, Node b) {
+        return tree.getNode(getLCA(a.getNr(), b.getNr()));
+    }
+
+    /**
+     * @param taxa tip IDs
+     * @return node number of the MRCA of taxa, -1 if taxa is empty or contains a
+     *         taxon that is not in the tree
+     */
+    public synchronized int getMRCANr(Collection<String> taxa) {
+        int first = -1;
+        int last = -1;
+        for (String taxon : taxa) {
+            int index = taxonIndex.getIndex(taxon);
+            if (index == -1) {
+                return -1;
+            }
+            int nodeNr = taxonNodeNr[index];
+            if (first == -1 || position[nodeNr] < position[first]) {
+                first = nodeNr;
+            }
+            if (last == -1 || position[nodeNr] > position[last]) {
+                last = nodeNr;
+            }
+        }
+        if (first == -1) {
+            return -1;
+        }
+        return getLCA(first, last);
+    }
+
+    /**
+     * @return node number of the MRCA of the taxa of taxonSet (see
+     *         getMRCANr(Collection))
+     */
+    public synchronized int getMRCANr(TaxonSet taxonSet) {
+        Integer nodeNr = mrcaCache.get(taxonSet);
+        if (nodeNr == null) {
+            nodeNr = getMRCANr(taxonSet.getTaxaNames());
+            mrcaCache.put(taxonSet, nodeNr);
+        }
+        return nodeNr;
+    }
+
+    /**
+     * @return the MRCA of the taxa of taxonSet, null if it contains a taxon that is
+     *         not in the tree
+     */
+    public Node getMRCA(TaxonSet taxonSet) {
+        int nodeNr = getMRCANr(taxonSet);
+        return nodeNr == -1 ? null : tree.getNode(nodeNr);
+    }
+
+    /**
+     * @return the node whose descendants are exactly the taxa of taxonSet
+     * @throws IllegalArgumentException if taxonSet is not monophyletic in the tree
+     */
+    public Node getMonophyleticMRCA(TaxonSet taxonSet) {
+        int nodeNr = getMRCANr(taxonSet);
+        if (nodeNr == -1 || leafCount[nodeNr] != taxonSet.getTaxaNames().size()) {
+            throw new IllegalArgumentException("Taxon set " + taxonSet.getID() + " is not monophyletic in tree "
+                    + tree.getID() + ".");
+        }
+        return tree.getNode(nodeNr);
+    }
+
+    public int getLeafCount(int nodeNr) {
+        return leafCount[nodeNr];
+    }
+
+    public TaxonIndex getTaxonIndex() {
+        return taxonIndex;
+    }
+}
@@ -0,0 +1,94 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the lines of a UTF-8 text file through memory mapped windows of the
+ * file, so that files larger than the heap can be streamed. Only the current
+ * window is mapped, a window is grown when a line does not fit in it.
+ */
+public class MappedLineReader implements Closeable {
+
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    // position in the file of the start of window
+    private long windowStart;
+    private byte[] line = new byte[1 << 16];
+
+    public MappedLineReader(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        size = channel.size();
+        map(0, WINDOW_SIZE);
+    }
+
+    private void map(long start, long length) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, size - start));
+    }
+
+    /**
+     * @return the next line without its line terminator, null at the end of the
+     *         file
+     */
+    public String readLine() throws IOException {
+        if (windowStart + window.position() >= size) {
+            return null;
+        }
+        long windowSize = WINDOW_SIZE;
+        int end = findLineEnd();
+        while (end == -1 && windowStart + window.limit() < size) {
+            // the line goes past the window, map a larger window from the start of the line
+            if (windowSize > Integer.MAX_VALUE / 2) {
+                throw new IOException("Line longer than " + Integer.MAX_VALUE + " bytes");
+            }
+            windowSize *= 2;
+            map(windowStart + window.position(), windowSize);
+            end = findLineEnd();
+        }
+        if (end == -1) {
+            end = window.limit();
+        }
+
+        int length = end - window.position();
+        if (line.length < length) {
+            line = new byte[Math.max(length, 2 * line.length)];
+        }
+        window.get(line, 0, length);
+        if (window.hasRemaining()) {
+            // skip the '\n'
+            window.get();
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (!window.hasRemaining() && windowStart + window.limit() < size) {
+            map(windowStart + window.limit(), WINDOW_SIZE);
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // position of the next '\n' in window, -1 if there is none
+    private int findLineEnd() {
+        for (int i = window.position(); i < window.limit(); i++) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
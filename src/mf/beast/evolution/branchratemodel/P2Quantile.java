@@ -0,0 +1,108 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.Arrays;
+
+/**
+ * Streaming estimate of a quantile with the P-square algorithm of Jain and
+ * Chlamtac (1985). Five markers are kept whatever the number of observations.
+ */
+public class P2Quantile {
+
+    private final double p;
+
+    // heights and positions of the markers, desired positions and their increments
+    private final double[] heights = new double[5];
+    private final int[] positions = new int[5];
+    private final double[] desired = new double[5];
+    private final double[] increments;
+
+    private long count;
+
+    public P2Quantile(double p) {
+        this.p = p;
+        increments = new double[] { 0, p / 2, p, (1 + p) / 2, 1 };
+    }
+
+    public void add(double x) {
+        if (count < 5) {
+            heights[(int) count++] = x;
+            if (count == 5) {
+                Arrays.sort(heights);
+                for (int i = 0; i < 5; i++) {
+                    positions[i] = i + 1;
+                }
+                desired[0] = 1;
+                desired[1] = 1 + 2 * p;
+                desired[2] = 1 + 4 * p;
+                desired[3] = 3 + 2 * p;
+                desired[4] = 5;
+            }
+            return;
+        }
+        count++;
+
+        // cell k such that heights[k] <= x < heights[k + 1]
+        int k;
+        if (x < heights[0]) {
+            heights[0] = x;
+            k = 0;
+        } else if (x >= heights[4]) {
+            heights[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= heights[k + 1]) {
+                k++;
+            }
+        }
+        for (int i = k + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+
+        // adjust the heights of the middle markers
+        for (int i = 1; i <= 3; i++) {
+            double d = desired[i] - positions[i];
+            if ((d >= 1 && positions[i + 1] - positions[i] > 1) || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int s = d >= 0 ? 1 : -1;
+                double height = parabolic(i, s);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] = heights[i] + s * (heights[i + s] - heights[i]) / (positions[i + s] - positions[i]);
+                }
+                positions[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        double n0 = positions[i - 1];
+        double n1 = positions[i];
+        double n2 = positions[i + 1];
+        return heights[i] + s / (n2 - n0) * ((n1 - n0 + s) * (heights[i + 1] - heights[i]) / (n2 - n1)
+                + (n2 - n1 - s) * (heights[i] - heights[i - 1]) / (n1 - n0));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the estimate of the quantile, exact while there are less than five
+     *         observations and NaN if there are none
+     */
+    public double getQuantile() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count < 5) {
+            double[] sorted = Arrays.copyOf(heights, (int) count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.round(p * (count - 1))];
+        }
+        return heights[2];
+    }
+}
@@ -0,0 +1,212 @@
+package mf.beast.evolution.branchratemodel;
+
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.inference.distribution.Exponential;
+import beast.base.inference.distribution.Gamma;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.distribution.ParametricDistribution;
+
+import org.apache.commons.math.MathException;
+
+/**
+ * Derivatives of the quantiles of the distributions used by the relaxed clocks
+ * with respect to their parameters, at a fixed probability:
+ * <ul>
+ * <li>LogNormal: closed form for M and S, in real or log space,</li>
+ * <li>Exponential: closed form for the mean,</li>
+ * <li>Gamma: closed form for the scale, the derivative of the regularized
+ * incomplete gamma function with respect to the shape is computed by central
+ * differences,</li>
+ * </ul>
+ * in every parametrisation of the distribution.
+ */
+public abstract class QuantileGradient {
+
+    protected final ParametricDistribution distribution;
+
+    protected QuantileGradient(ParametricDistribution distribution) {
+        this.distribution = distribution;
+    }
+
+    /**
+     * @param distribution rate distribution
+     * @return the derivatives of the quantiles of distribution
+     */
+    public static QuantileGradient create(ParametricDistribution distribution) {
+        if (distribution instanceof LogNormalDistributionModel) {
+            return new LogNormal((LogNormalDistributionModel) distribution);
+        } else if (distribution instanceof Exponential) {
+            return new Exp((Exponential) distribution);
+        } else if (distribution instanceof Gamma) {
+            return new GammaQuantile((Gamma) distribution);
+        }
+        return new Unsupported(distribution);
+    }
+
+    /**
+     * @return true if the distribution depends on parameter
+     */
+    public abstract boolean dependsOn(Function parameter);
+
+    /**
+     * @param p         probability
+     * @param x         quantile of p
+     * @param parameter a parameter of the distribution
+     * @return derivative of the quantile of p with respect to parameter
+     */
+    public abstract double getDerivative(double p, double x, Function parameter) throws MathException;
+
+    protected double getOffset() {
+        Double offset = distribution.offsetInput.get();
+        return offset == null ? 0.0 : offset;
+    }
+
+    private static double getValue(Function function, double defaultValue) {
+        return function == null ? defaultValue : function.getArrayValue();
+    }
+
+    private static class LogNormal extends QuantileGradient {
+
+        private final LogNormalDistributionModel logNormal;
+
+        LogNormal(LogNormalDistributionModel distribution) {
+            super(distribution);
+            logNormal = distribution;
+        }
+
+        @Override
+        public boolean dependsOn(Function parameter) {
+            return parameter == logNormal.MParameterInput.get() || parameter == logNormal.SParameterInput.get();
+        }
+
+        // x = offset + exp(mu + sigma * z) with z the normal quantile of p, and
+        // mu = log(M) - sigma^2 / 2 if the mean is in real space
+        @Override
+        public double getDerivative(double p, double x, Function parameter) {
+            double y = x - getOffset();
+            boolean realSpace = logNormal.hasMeanInRealSpaceInput.get();
+            double derivative = 0.0;
+            if (parameter == logNormal.MParameterInput.get()) {
+                derivative += realSpace ? y / parameter.getArrayValue() : y;
+            }
+            if (parameter == logNormal.SParameterInput.get()) {
+                double z = FastInverseCDF.normalQuantile(p);
+                derivative += realSpace ? y * (z - parameter.getArrayValue()) : y * z;
+            }
+            return derivative;
+        }
+    }
+
+    private static class Exp extends QuantileGradient {
+
+        private final Exponential exponential;
+
+        Exp(Exponential distribution) {
+            super(distribution);
+            exponential = distribution;
+        }
+
+        @Override
+        public boolean dependsOn(Function parameter) {
+            return parameter == exponential.lambdaInput.get();
+        }
+
+        // x = offset - mean * log(1 - p)
+        @Override
+        public double getDerivative(double p, double x, Function parameter) {
+            if (parameter != exponential.lambdaInput.get()) {
+                return 0.0;
+            }
+            return (x - getOffset()) / parameter.getArrayValue();
+        }
+    }
+
+    private static class GammaQuantile extends QuantileGradient {
+
+        // relative step of the central differences on the shape
+        private static final double SHAPE_STEP = 1e-5;
+
+        private final Gamma gamma;
+
+        GammaQuantile(Gamma distribution) {
+            super(distribution);
+            gamma = distribution;
+        }
+
+        @Override
+        public boolean dependsOn(Function parameter) {
+            return parameter == gamma.alphaInput.get() || parameter == gamma.betaInput.get();
+        }
+
+        // x = offset + scale * y with y the quantile of p of the gamma distribution
+        // with scale 1, the scale depends on the mode
+        @Override
+        public double getDerivative(double p, double x, Function parameter) throws MathException {
+            double alpha = getValue(gamma.alphaInput.get(), 1.0);
+            double beta = getValue(gamma.betaInput.get(), 1.0);
+            Gamma.mode mode = gamma.modeInput.get() == null ? Gamma.mode.ShapeScale : gamma.modeInput.get();
+
+            double scale;
+            double scaleByAlpha = 0.0;
+            double scaleByBeta = 0.0;
+            switch (mode) {
+            case ShapeRate:
+                scale = 1.0 / beta;
+                scaleByBeta = -1.0 / (beta * beta);
+                break;
+            case ShapeMean:
+                scale = beta / alpha;
+                scaleByAlpha = -beta / (alpha * alpha);
+                scaleByBeta = 1.0 / alpha;
+                break;
+            case OneParameter:
+                scale = 1.0 / alpha;
+                scaleByAlpha = -1.0 / (alpha * alpha);
+                break;
+            default:
+                scale = beta;
+                scaleByBeta = 1.0;
+            }
+            double y = (x - getOffset()) / scale;
+
+            double derivative = 0.0;
+            if (parameter == gamma.alphaInput.get()) {
+                // P(alpha, y) = p, so dy/dalpha = -dP/dalpha / dP/dy
+                double h = SHAPE_STEP * alpha;
+                double dPdAlpha = (org.apache.commons.math.special.Gamma.regularizedGammaP(alpha + h, y)
+                        - org.apache.commons.math.special.Gamma.regularizedGammaP(alpha - h, y)) / (2.0 * h);
+                double density = Math.exp(
+                        (alpha - 1.0) * Math.log(y) - y - org.apache.commons.math.special.Gamma.logGamma(alpha));
+                derivative += -scale * dPdAlpha / density + y * scaleByAlpha;
+            }
+            if (parameter == gamma.betaInput.get() && mode != Gamma.mode.OneParameter) {
+                derivative += y * scaleByBeta;
+            }
+            return derivative;
+        }
+    }
+
+    private static class Unsupported extends QuantileGradient {
+
+        Unsupported(ParametricDistribution distribution) {
+            super(distribution);
+        }
+
+        @Override
+        public boolean dependsOn(Function parameter) {
+            for (Object input : distribution.getInputs().values()) {
+                if (((Input<?>) input).get() == parameter) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public double getDerivative(double p, double x, Function parameter) {
+            throw new IllegalArgumentException("Gradients with respect to the parameters of "
+                    + distribution.getClass().getName() + " are not available");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math.MathException;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.StateNode;
+import beast.base.inference.distribution.ParametricDistribution;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * Joint move of the mean rate (clock.rate) of a relaxed clock and of its rate
+ * categories or quantiles.
+ * <p>
+ * With quantiles the mean rate is scaled by s and every quantile is moved so
+ * that the rate of its branch does not change: q' = F(F^-1(q) / s). The
+ * Hastings ratio includes the Jacobian of this transform, the product of
+ * f(F^-1(q) / s) / (s f(F^-1(q))).
+ * <p>
+ * Categories cannot preserve every rate, instead all the categories are shifted
+ * by the same random number of categories and the mean rate is scaled so that
+ * the number of substitutions on the branches of the clock (the sum of rate *
+ * length) does not change.
+ */
+@Description("Scales the mean rate of a relaxed clock and updates the rate categories or quantiles of its branches "
+        + "so that their lengths in substitutions are preserved. Requires clock.rate to be a RealParameter and "
+        + "normalize=false.")
+public class RatePreservingMeanScaleOperator extends BranchRateOperator {
+
+    public Input<Double> scaleFactorInput = new Input<Double>("scaleFactor",
+            "scaling factor of the mean rate when quantiles are used: larger means more bold proposals", 0.75);
+    public Input<Integer> windowSizeInput = new Input<Integer>("windowSize",
+            "largest shift of the rate categories when categories are used", 1);
+    public Input<Boolean> optimiseInput = new Input<Boolean>("optimise",
+            "flag to indicate that the scale factor is automatically changed in order to achieve a good "
+                    + "acceptance rate (default true)",
+            true);
+
+    private RealParameter meanRate;
+    private ParametricDistribution distribution;
+    private double scaleFactor;
+
+    // rate of each category with a mean rate of 1, computed as needed
+    private double[] categoryRates;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        Function mean = clock.meanRateInput.get();
+        if (!(mean instanceof RealParameter)) {
+            throw new IllegalArgumentException(
+                    "RatePreservingMeanScaleOperator requires the clock.rate of the clock to be a RealParameter");
+        }
+        if (clock.normalizeInput.get()) {
+            throw new IllegalArgumentException("RatePreservingMeanScaleOperator cannot be used with normalize=true: "
+                    + "the mean rate of a normalized clock does not depend on the categories");
+        }
+        meanRate = (RealParameter) mean;
+        distribution = clock.rateDistInput.get();
+        scaleFactor = scaleFactorInput.get();
+    }
+
+    @Override
+    public double proposal() {
+        collectBranches();
+        if (branchCount == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            return usingQuantiles() ? proposeQuantiles() : proposeCategories();
+        } catch (MathException e) {
+            throw new RuntimeException("Failed to compute inverse cumulative probability!");
+        }
+    }
+
+    private double proposeQuantiles() throws MathException {
+        double scale = scaleFactor + Randomizer.nextDouble() * (1.0 / scaleFactor - scaleFactor);
+        if (!setMeanRate(meanRate.getValue() * scale)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // the distribution does not change, only the quantiles
+        double logJacobian = 0.0;
+        for (int i = 0; i < branchCount; i++) {
+            int slot = clock.getSlot(branches[i]);
+            double rate = distribution.inverseCumulativeProbability(quantiles.getValue(slot));
+            double newQuantile = distribution.cumulativeProbability(rate / scale);
+            if (!(newQuantile > 0.0 && newQuantile < 1.0)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            quantiles.setValue(slot, newQuantile);
+            logJacobian += distribution.logDensity(rate / scale) - Math.log(scale) - distribution.logDensity(rate);
+        }
+        return logJacobian - Math.log(scale);
+    }
+
+    private double proposeCategories() throws MathException {
+        int windowSize = windowSizeInput.get();
+        int shift = Randomizer.nextInt(2 * windowSize) - windowSize;
+        if (shift >= 0) {
+            shift++;
+        }
+
+        Tree tree = clock.treeInput.get();
+        // the number of categories of a lineage clock is only known once its
+        // branches are assigned
+        int categoryCount = categories.getUpper() + 1;
+        if (categoryRates == null || categoryRates.length != categoryCount) {
+            categoryRates = new double[categoryCount];
+        }
+        Arrays.fill(categoryRates, Double.NaN);
+        double substitutions = 0.0;
+        double newSubstitutions = 0.0;
+        for (int i = 0; i < branchCount; i++) {
+            int slot = clock.getSlot(branches[i]);
+            int category = categories.getValue(slot);
+            int newCategory = category + shift;
+            if (newCategory < categories.getLower() || newCategory > categories.getUpper()) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            double length = tree.getNode(branches[i]).getLength();
+            substitutions += getCategoryRate(category) * length;
+            newSubstitutions += getCategoryRate(newCategory) * length;
+        }
+        if (newSubstitutions == 0.0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        for (int i = 0; i < branchCount; i++) {
+            int slot = clock.getSlot(branches[i]);
+            categories.setValue(slot, categories.getValue(slot) + shift);
+        }
+
+        double ratio = substitutions / newSubstitutions;
+        if (!setMeanRate(meanRate.getValue() * ratio)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        // the shift is symmetric, the Jacobian of the mean rate is the ratio
+        return Math.log(ratio);
+    }
+
+    private double getCategoryRate(int category) throws MathException {
+        if (Double.isNaN(categoryRates[category])) {
+            categoryRates[category] = distribution
+                    .inverseCumulativeProbability((category + 0.5) / categoryRates.length);
+        }
+        return categoryRates[category];
+    }
+
+    private boolean setMeanRate(double value) {
+        if (value < meanRate.getLower() || value > meanRate.getUpper()) {
+            return false;
+        }
+        meanRate.setValue(value);
+        return true;
+    }
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        List<StateNode> stateNodes = super.listStateNodes();
+        stateNodes.add(meanRate);
+        return stateNodes;
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return scaleFactor;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        scaleFactor = Math.max(Math.min(value, 1.0 - 1e-8), 1e-8);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimiseInput.get() && usingQuantiles()) {
+            double delta = calcDelta(logAlpha);
+            delta += Math.log(1.0 / scaleFactor - 1.0);
+            setCoercableParameterValue(1.0 / (Math.exp(delta) + 1.0));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.inference.distribution.ParametricDistribution;
+
+/**
+ * Least recently used cache of the rates of the rate categories, shared by all
+ * the relaxed clocks. Tables are keyed by the class of the rate distribution,
+ * the values of all its inputs, the number of categories and the tolerance of
+ * the inverse CDF approximation (0 for the exact inverse CDF), so clocks with
+ * the same distribution and states that revisit the same parameters reuse the
+ * rates instead of evaluating the inverse CDF again.
+ * <p>
+ * A table may be partial: categories that no clock used yet are 0, as in
+ * AbstractUCRelaxedClockModel. Tables in the cache are never modified, get()
+ * callers copy them and put() stores a copy.
+ */
+public class RateTableCache {
+
+    // at most MAX_SIZE doubles (32 MB) are kept over all the tables, tables of
+    // more than MAX_TABLE_SIZE doubles are not cached so that a single table
+    // cannot flush all the others
+    static final long MAX_SIZE = 1 << 22;
+    static final int MAX_TABLE_SIZE = (int) (MAX_SIZE / 8);
+
+    private static final LinkedHashMap<Key, double[]> tables = new LinkedHashMap<Key, double[]>(16, 0.75f, true);
+    // number of doubles in tables
+    private static long size;
+
+    private RateTableCache() {
+    }
+
+    /**
+     * @return the table of key, or null if it is not cached. The table must not
+     *         be modified.
+     */
+    public static synchronized double[] get(Key key) {
+        return tables.get(key);
+    }
+
+    /**
+     * Caches a copy of the first key.getCategoryCount() entries of rates, unless
+     * the table is larger than MAX_TABLE_SIZE. The least recently used tables are
+     * dropped to keep the cache within MAX_SIZE doubles.
+     */
+    public static synchronized void put(Key key, double[] rates) {
+        if (key.getCategoryCount() > MAX_TABLE_SIZE) {
+            return;
+        }
+        double[] old = tables.put(key, Arrays.copyOf(rates, key.getCategoryCount()));
+        size += key.getCategoryCount() - (old == null ? 0 : old.length);
+        Iterator<double[]> eldest = tables.values().iterator();
+        while (size > MAX_SIZE) {
+            size -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    // number of doubles in the cache
+    static synchronized long size() {
+        return size;
+    }
+
+    static synchronized void clear() {
+        tables.clear();
+        size = 0;
+    }
+
+    /**
+     * @param distribution rate distribution
+     * @param tolerance    tolerance of the approximation of the inverse CDF, 0
+     *                     for the exact inverse CDF
+     * @return a builder of the keys of the current parameters of distribution,
+     *         null if some input of distribution cannot be part of a key
+     */
+    public static KeyBuilder keyBuilder(ParametricDistribution distribution, double tolerance) {
+        // sorted by name so that all the clocks list the inputs in the same order
+        Map<String, Input<?>> sortedInputs = new TreeMap<String, Input<?>>(distribution.getInputs());
+        List<Input<?>> inputs = new ArrayList<Input<?>>(sortedInputs.values());
+        for (Input<?> input : inputs) {
+            if (!isSupported(input.get())) {
+                return null;
+            }
+        }
+        return new KeyBuilder(distribution.getClass(), inputs.toArray(new Input<?>[0]), tolerance);
+    }
+
+    private static boolean isSupported(Object value) {
+        return value == null || value instanceof Function || value instanceof Number || value instanceof Boolean
+                || value instanceof Enum || value instanceof String;
+    }
+
+    public static class KeyBuilder {
+
+        private final Class<?> type;
+        private final Input<?>[] inputs;
+        private final double tolerance;
+
+        private KeyBuilder(Class<?> type, Input<?>[] inputs, double tolerance) {
+            this.type = type;
+            this.inputs = inputs;
+            this.tolerance = tolerance;
+        }
+
+        /**
+         * @return the key of the table of categoryCount categories for the current
+         *         parameters, null if an input changed to an unsupported value
+         */
+        public Key build(int categoryCount) {
+            List<Object> values = new ArrayList<Object>(inputs.length + 2);
+            values.add(categoryCount);
+            values.add(tolerance);
+            for (Input<?> input : inputs) {
+                Object value = input.get();
+                if (value instanceof Function) {
+                    Function function = (Function) value;
+                    double[] array = new double[function.getDimension()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = function.getArrayValue(i);
+                    }
+                    values.add(new ArrayKey(array));
+                } else if (isSupported(value)) {
+                    values.add(value);
+                } else {
+                    return null;
+                }
+            }
+            return new Key(type, categoryCount, values);
+        }
+    }
+
+    public static final class Key {
+
+        private final Class<?> type;
+        private final int categoryCount;
+        private final List<Object> values;
+        private final int hash;
+
+        private Key(Class<?> type, int categoryCount, List<Object> values) {
+            this.type = type;
+            this.categoryCount = categoryCount;
+            this.values = values;
+            hash = 31 * type.hashCode() + values.hashCode();
+        }
+
+        public int getCategoryCount() {
+            return categoryCount;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && type == key.type && values.equals(key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // values of a parameter, compared bit by bit
+    private static final class ArrayKey {
+
+        private final double[] values;
+
+        ArrayKey(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ArrayKey && Arrays.equals(values, ((ArrayKey) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.io.PrintStream;
+
+/**
+ * Posterior summaries of named statistics: mean, variance, median and 95%
+ * interval estimated with P-square quantiles, so that the memory used does not
+ * depend on the number of samples.
+ */
+public class StatisticSummary {
+
+    private final String[] names;
+
+    // running mean and sum of squared deviations (Welford)
+    private final long[] counts;
+    private final double[] means;
+    private final double[] squaredDeviations;
+    private final P2Quantile[] lower;
+    private final P2Quantile[] medians;
+    private final P2Quantile[] upper;
+
+    public StatisticSummary(String[] names) {
+        this.names = names.clone();
+        int size = names.length;
+        counts = new long[size];
+        means = new double[size];
+        squaredDeviations = new double[size];
+        lower = new P2Quantile[size];
+        medians = new P2Quantile[size];
+        upper = new P2Quantile[size];
+        for (int i = 0; i < size; i++) {
+            lower[i] = new P2Quantile(0.025);
+            medians[i] = new P2Quantile(0.5);
+            upper[i] = new P2Quantile(0.975);
+        }
+    }
+
+    /**
+     * Adds a sample x of the i-th statistic, NaN is ignored.
+     */
+    public void add(int i, double x) {
+        if (Double.isNaN(x)) {
+            return;
+        }
+        counts[i]++;
+        double delta = x - means[i];
+        means[i] += delta / counts[i];
+        squaredDeviations[i] += delta * (x - means[i]);
+        lower[i].add(x);
+        medians[i].add(x);
+        upper[i].add(x);
+    }
+
+    /**
+     * Writes one line per statistic with the number of samples, the posterior
+     * mean, variance, median and 95% interval of the statistic.
+     */
+    public void print(PrintStream out) {
+        out.println("statistic\tsamples\tmean\tvariance\tmedian\tlower95\tupper95");
+        for (int i = 0; i < names.length; i++) {
+            double variance = counts[i] > 1 ? squaredDeviations[i] / (counts[i] - 1) : Double.NaN;
+            out.println(names[i] + "\t" + counts[i] + "\t" + (counts[i] > 0 ? means[i] : Double.NaN) + "\t" + variance
+                    + "\t" + medians[i].getQuantile() + "\t" + lower[i].getQuantile() + "\t"
+                    + upper[i].getQuantile());
+        }
+    }
+}
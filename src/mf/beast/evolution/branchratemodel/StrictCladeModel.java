@@ -1,9 +1,12 @@
 package mf.beast.evolution.branchratemodel;
 
+import java.util.Arrays;
+
 import beast.base.core.Function;
 import beast.base.evolution.tree.Node;
+import beast.base.inference.util.InputUtil;
 
-public class StrictCladeModel extends CladeRateModel.Base {
+public class StrictCladeModel extends CladeRateModel.Base implements BranchRateGradient {
 
     Function muParameter;
 
@@ -22,21 +25,49 @@ public class StrictCladeModel extends CladeRateModel.Base {
         return mu;
     }
 
+    @Override
+    public void getRatesForAllBranches(double[] rates) {
+        Arrays.fill(rates, mu);
+    }
+
+    @Override
+    public boolean isBranchDirty(int nodeNr) {
+        return InputUtil.isDirty(meanRateInput);
+    }
+
+    @Override
+    public void addGradient(double[] branchGradient, Function parameter, double[] gradient) {
+        // every branch of the clade has rate mu
+        if (parameter != null && parameter == muParameter) {
+            for (double derivative : branchGradient) {
+                gradient[0] += derivative;
+            }
+        }
+    }
+
     @Override
     public boolean requiresRecalculation() {
+        // the clade itself is fixed, only the rate can change
+        if (!InputUtil.isDirty(meanRateInput)) {
+            return false;
+        }
         mu = muParameter.getArrayValue();
         return true;
     }
 
     @Override
     protected void restore() {
-        mu = muParameter.getArrayValue();
+        if (muParameter != null) {
+            mu = muParameter.getArrayValue();
+        }
         super.restore();
     }
 
     @Override
     protected void store() {
-        mu = muParameter.getArrayValue();
+        if (muParameter != null) {
+            mu = muParameter.getArrayValue();
+        }
         super.store();
     }
 
@@ -1,13 +1,16 @@
 package mf.beast.evolution.branchratemodel;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
+import beast.base.core.Function;
 import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.tree.Node;
+import beast.base.inference.util.InputUtil;
 
-public class StrictLineageClockModel extends StrictClockModel implements LineageRateModel {
+public class StrictLineageClockModel extends StrictClockModel implements LineageRateModel, BranchRateGradient {
 
     private Set<Node> nodes = new HashSet<Node>();
 
@@ -22,4 +25,25 @@ public class StrictLineageClockModel extends StrictClockModel implements Lineage
         return Collections.unmodifiableSet(nodes);
     }
 
+    @Override
+    public void getRatesForAllBranches(double[] rates) {
+        // the rate does not depend on the branch
+        Arrays.fill(rates, getRateForBranch(null));
+    }
+
+    @Override
+    public boolean isBranchDirty(int nodeNr) {
+        return InputUtil.isDirty(meanRateInput);
+    }
+
+    @Override
+    public void addGradient(double[] branchGradient, Function parameter, double[] gradient) {
+        // every branch has rate clock.rate
+        if (parameter != null && parameter == meanRateInput.get()) {
+            for (double derivative : branchGradient) {
+                gradient[0] += derivative;
+            }
+        }
+    }
+
 }
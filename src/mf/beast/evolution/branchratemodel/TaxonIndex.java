@@ -0,0 +1,109 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Maps the tip IDs of a tree to dense integers and gives every taxon a random
+ * 64 bit key. A set of taxa is identified by the sum of the keys of its taxa,
+ * which does not depend on the order of the taxa and can be computed for every
+ * node of a tree from the hashes of its children.
+ */
+public class TaxonIndex {
+
+    private final Map<String, Integer> indices;
+    private final long[] keys;
+
+    public TaxonIndex(Tree tree) {
+        this(getTipIDs(tree));
+    }
+
+    /**
+     * @param taxa distinct tip IDs, the index of a taxon is its position in taxa
+     */
+    public TaxonIndex(List<String> taxa) {
+        indices = new HashMap<String, Integer>(taxa.size() * 2);
+        keys = new long[taxa.size()];
+        for (int index = 0; index < keys.length; index++) {
+            indices.put(taxa.get(index), index);
+            keys[index] = mix(index + 1);
+        }
+    }
+
+    // tip IDs in node number order
+    private static List<String> getTipIDs(Tree tree) {
+        List<String> taxa = new ArrayList<String>(tree.getLeafNodeCount());
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Node node = tree.getNode(i);
+            if (node.isLeaf()) {
+                taxa.add(node.getID());
+            }
+        }
+        return taxa;
+    }
+
+    public int getTaxonCount() {
+        return keys.length;
+    }
+
+    /**
+     * @param taxon tip ID
+     * @return dense index of the taxon, -1 if the tree has no such tip
+     */
+    public int getIndex(String taxon) {
+        Integer index = indices.get(taxon);
+        return index == null ? -1 : index;
+    }
+
+    public long getKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * @param taxon tip ID of a leaf of the tree
+     * @return hash of the clade made of this leaf only
+     */
+    public long getKey(String taxon) {
+        return keys[indices.get(taxon)];
+    }
+
+    /**
+     * @param taxa tip IDs
+     * @return true if every taxon is a tip of the tree
+     */
+    public boolean containsAll(Collection<String> taxa) {
+        for (String taxon : taxa) {
+            if (!indices.containsKey(taxon)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param taxa tip IDs of the tree (see containsAll)
+     * @return hash of the clade made of these taxa
+     */
+    public long hashOf(Collection<String> taxa) {
+        long hash = 0;
+        for (String taxon : taxa) {
+            hash += getKey(taxon);
+        }
+        return hash;
+    }
+
+    // SplitMix64 finalizer: deterministic so that the keys do not depend on, nor
+    // change, the state of the random number generator
+    private static long mix(long z) {
+        z *= 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
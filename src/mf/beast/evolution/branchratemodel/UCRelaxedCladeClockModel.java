@@ -1,8 +1,8 @@
 package mf.beast.evolution.branchratemodel;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
 
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
@@ -17,52 +17,51 @@ public class UCRelaxedCladeClockModel extends AbstractUCRelaxedClockModel implem
     private int branchCladeCount; // number of branches included in the clade
     private TaxonSet taxonSet;
     private int[] map;
+    private int[] storedMap;
+    private List<CladeBranches> cladeBranches;
+    private boolean[] mark;
 
     @Override
     public void initAndValidate() {
 
-        map = new int[treeInput.get().getNodeCount()];
+        int nodeCount = treeInput.get().getNodeCount();
+        map = new int[nodeCount];
         Arrays.fill(map, -1);
 
         taxonSet = taxonSetInput.get();
-        Node mrca = findMRCA(taxonSet, treeInput.get().getRoot(), new HashSet<String>());
-        branchCladeCount = 0;
-        setUpMap(mrca);
-        if (!includeStemInput.get())
-            branchCladeCount--;
+        Node mrca = MRCAIndex.forTree(treeInput.get()).getMonophyleticMRCA(taxonSet);
+        CladeBranches branches = new CladeBranches(treeInput.get(), taxonSet, mrca, includeStemInput.get());
+        branches.assign(map, 0);
+        branchCladeCount = branches.getBranchCount();
+        cladeBranches = Collections.singletonList(branches);
+
+        storedMap = map.clone();
+        mark = new boolean[nodeCount];
 
         super.initAndValidate();
     }
 
-    private void setUpMap(Node node) {
-        for (int i = 0; i < node.getChildCount(); i++) {
-            setUpMap(node.getChild(i));
-        }
-        map[node.getNr()] = branchCladeCount;
-        branchCladeCount++;
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean mapChanged = treeInput.get().somethingIsDirty()
+                && CladeBranches.update(treeInput.get(), cladeBranches, map, mark);
+        return super.requiresRecalculation() || mapChanged;
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(map, 0, storedMap, 0, map.length);
+        cladeBranches.get(0).store();
+        super.store();
     }
 
-    private Node findMRCA(TaxonSet taxonSet, Node node, Set<String> descendants) {
-        if (node.isLeaf()) {
-            descendants.add(node.getID());
-
-            if (taxonSet.getTaxaNames().equals(descendants)) {
-                return node;
-            }
-        } else {
-            for (int i = 0; i < node.getChildCount(); i++) {
-                Set<String> set = new HashSet<String>();
-                Node mrca = findMRCA(taxonSet, node.getChild(i), set);
-                if (mrca != null)
-                    return mrca;
-                descendants.addAll(set);
-            }
-
-            if (taxonSet.getTaxaNames().equals(descendants)) {
-                return node;
-            }
-        }
-        return null;
+    @Override
+    public void restore() {
+        int[] tmp = map;
+        map = storedMap;
+        storedMap = tmp;
+        cladeBranches.get(0).restore();
+        super.restore();
     }
 
     ////////////////////////////////////////////////////////////
@@ -73,6 +72,10 @@ public class UCRelaxedCladeClockModel extends AbstractUCRelaxedClockModel implem
         return map[nodeNumber];
     }
 
+    protected int getStoredCategoryIndex(int nodeNumber) {
+        return storedMap[nodeNumber];
+    }
+
     protected int getAssignedBranchCount() {
         return branchCladeCount;
     }
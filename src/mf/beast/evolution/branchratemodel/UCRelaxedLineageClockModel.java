@@ -5,95 +5,127 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
-import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
-import beast.base.inference.parameter.IntegerParameter;
-import beast.base.inference.parameter.RealParameter;
-import beast.base.util.Randomizer;
 
-// Lets hope that the SwapOperator on rateCategories is constructed AFTER initializeNodeAssignment() is called
 public class UCRelaxedLineageClockModel extends AbstractUCRelaxedClockModel implements LineageRateModel {
 
     private int[] map;
+    private int[] storedMap;
     private int assignedBranchCount;
-    private Set<Node> nodes = new HashSet<Node>();
+    private boolean nodesAssigned = false;
+    // true if there is a slot for every branch of the tree
+    private boolean allBranchSlots = false;
+
+    // scratch array marking the branches of an assignment
+    private boolean[] mark;
 
     @Override
     public void initAndValidate() {
         assignedBranchCount = treeInput.get().getNodeCount() - 1;
         map = new int[treeInput.get().getNodeCount()];
+        storedMap = new int[map.length];
+        mark = new boolean[map.length];
+        Arrays.fill(map, -1);
+        nodesAssigned = false;
         super.initAndValidate();
     }
 
     ////////////////////////////////////////////////////////////
     // Implement LineageRateModel interface
     ////////////////////////////////////////////////////////////
+    // The slot of a branch only depends on the branches of the lineage, so a
+    // state gets the same rates whichever way it was reached. When the clades
+    // are switched on and off there is a slot for every branch of the tree: the
+    // slot of a branch is its node number, or the number of the root for the
+    // node numbered nodeCount-1, as in the UCRelaxedClockModel of BEAST, and the
+    // slots of the branches outside the lineage stay dormant. Otherwise there is
+    // a slot for every branch of the first assignment, which the branches take
+    // in the order of their node numbers. The branches beyond the number of
+    // slots, which only join when a clade is not monophyletic, have no rate.
     @Override
-    public void initializeNodeAssignment(Set<Node> nodes) {
-
-        if (tree.getNodeCount() - 1 != nodes.size()) {
-            assignedBranchCount = nodes.size();// does not contain the root
-            this.nodes.clear();
-            this.nodes.addAll(nodes);
+    public void keepSlotsForAllBranches() {
+        allBranchSlots = true;
+    }
 
-            if (!usingQuantiles) {
-                LATTICE_SIZE_FOR_DISCRETIZED_RATES = numberOfDiscreteRates.get();
-                if (LATTICE_SIZE_FOR_DISCRETIZED_RATES <= 0) {
-                    LATTICE_SIZE_FOR_DISCRETIZED_RATES = assignedBranchCount;
-                }
-                Log.info.println("  UCRelaxedLineageClockModel: using " + LATTICE_SIZE_FOR_DISCRETIZED_RATES + " rate "
-                        + "categories to approximate rate distribution across branches.");
-            } else {
-                if (numberOfDiscreteRates.get() != -1) {
-                    throw new RuntimeException("Can't specify both numberOfDiscreteRates and rateQuantiles inputs.");
-                }
-                Log.info.println(
-                        "  UCRelaxedLineageClockModel: using quantiles for rate distribution across branches.");
+    @Override
+    public void initializeNodeAssignment(Set<Node> nodes) {
+        ClockEvents.InitializeNodeAssignment event = new ClockEvents.InitializeNodeAssignment();
+        event.begin();
+        boolean initial = !nodesAssigned;
+        if (initial) {
+            nodesAssigned = true;
+            if (!allBranchSlots && nodes.size() != assignedBranchCount) {
+                assignedBranchCount = nodes.size(); // does not contain the root
+                initRateSlots();
             }
+        }
+        int changedCount = assignNodes(nodes);
+        if (initial) {
+            System.arraycopy(map, 0, storedMap, 0, map.length);
+        }
+        if (event.shouldCommit()) {
+            event.set(tree.getNodeCount(), 1, changedCount);
+            event.initial = initial;
+            event.commit();
+        }
+    }
 
-            if (usingQuantiles) {
-                quantiles.setDimension(assignedBranchCount);
-                Double[] initialQuantiles = new Double[assignedBranchCount];
-                for (int i = 0; i < assignedBranchCount; i++) {
-                    initialQuantiles[i] = Randomizer.nextDouble();
-                }
-                RealParameter other = new RealParameter(initialQuantiles);
-                quantiles.assignFromWithoutID(other);
-                quantiles.setLower(0.0);
-                quantiles.setUpper(1.0);
-            } else {
-                categories.setDimension(assignedBranchCount);
-                Integer[] initialCategories = new Integer[assignedBranchCount];
-                for (int i = 0; i < assignedBranchCount; i++) {
-                    initialCategories[i] = Randomizer.nextInt(LATTICE_SIZE_FOR_DISCRETIZED_RATES);
+    // returns the number of branches whose slot changed
+    private int assignNodes(Set<Node> nodes) {
+        for (Node node : nodes) {
+            mark[node.getNr()] = true;
+        }
+        int lastNr = map.length - 1;
+        int rootNr = tree.getRoot().getNr();
+        int rank = 0;
+        int changedCount = 0;
+        for (int i = 0; i < map.length; i++) {
+            int slot = -1;
+            if (mark[i]) {
+                mark[i] = false;
+                if (allBranchSlots) {
+                    slot = i == lastNr ? rootNr : i;
+                } else if (rank < assignedBranchCount) {
+                    slot = rank;
                 }
-                // set initial values of rate categories
-                IntegerParameter other = new IntegerParameter(initialCategories);
-                categories.assignFromWithoutID(other);
-                categories.setLower(0);
-                categories.setUpper(LATTICE_SIZE_FOR_DISCRETIZED_RATES - 1);
+                rank++;
             }
-
-            if (!usingQuantiles) {
-                // rates are initially zero and are computed by getRawRate(int i) as needed
-                rates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
-                storedRates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
+            if (map[i] != slot) {
+                map[i] = slot;
+                changedCount++;
             }
         }
-
-        Arrays.fill(map, -1);
-        int index = 0;
-        for (Node node : nodes) {
-            map[node.getNr()] = index;
-            index++;
+        if (changedCount > 0) {
+            invalidateRates();
         }
+        return changedCount;
     }
 
     @Override
     public Set<Node> getNodes() {
+        Set<Node> nodes = new HashSet<Node>();
+        for (int i = 0; i < map.length; i++) {
+            if (map[i] != -1) {
+                nodes.add(tree.getNode(i));
+            }
+        }
         return Collections.unmodifiableSet(nodes);
     }
 
+    @Override
+    public void store() {
+        System.arraycopy(map, 0, storedMap, 0, map.length);
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        int[] tmp = map;
+        map = storedMap;
+        storedMap = tmp;
+        super.restore();
+    }
+
     ////////////////////////////////////////////////////////////
     // Implement abstract methods of AbstractUCRelaxedClockModel
     ////////////////////////////////////////////////////////////
@@ -102,6 +134,10 @@ public class UCRelaxedLineageClockModel extends AbstractUCRelaxedClockModel impl
         return map[nodeNumber];
     }
 
+    protected int getStoredCategoryIndex(int nodeNumber) {
+        return storedMap[nodeNumber];
+    }
+
     protected int getAssignedBranchCount() {
         return assignedBranchCount;
     }
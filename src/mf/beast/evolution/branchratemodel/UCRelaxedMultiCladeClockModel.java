@@ -2,15 +2,11 @@ package mf.beast.evolution.branchratemodel;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.alignment.TaxonSet;
-import beast.base.evolution.tree.Node;
 
 @Description("Defines an uncorrelated relaxed molecular clock for multiple monophyletic clades.")
 public class UCRelaxedMultiCladeClockModel extends AbstractUCRelaxedClockModel implements CladeRateModel {
@@ -20,6 +16,9 @@ public class UCRelaxedMultiCladeClockModel extends AbstractUCRelaxedClockModel i
     private int branchCladeCount; // number of branches included in the clade list
     private List<Clade> clades;
     private int[] map;
+    private int[] storedMap;
+    private List<CladeBranches> cladeBranches;
+    private boolean[] mark;
 
     @Override
     public void initAndValidate() {
@@ -29,49 +28,48 @@ public class UCRelaxedMultiCladeClockModel extends AbstractUCRelaxedClockModel i
 
         clades = cladeInputs.get();
 
-        ArrayList<Node> mrcas = new ArrayList<>(clades.size());
+        MRCAIndex mrcaIndex = MRCAIndex.forTree(tree);
+        cladeBranches = new ArrayList<>(clades.size());
+        branchCladeCount = 0;
         for (Clade clade : clades) {
-            setUpMRCAs(clade.getTaxonSet(), tree.getRoot(), new HashSet<String>(), mrcas);
+            CladeBranches branches = new CladeBranches(tree, clade.getTaxonSet(), clade.getMRCA(mrcaIndex),
+                    clade.includeStem());
+            branches.assign(map, branchCladeCount);
+            branchCladeCount += branches.getBranchCount();
+            cladeBranches.add(branches);
         }
 
-        branchCladeCount = 0;
-        Iterator<Clade> cladeInterator = clades.iterator();
-        for (Node mrca : mrcas) {
-            Clade clade = cladeInterator.next();
-            if (!clade.includeStem())
-                branchCladeCount--;
-            setUpMap(mrca);
-        }
+        storedMap = map.clone();
+        mark = new boolean[tree.getNodeCount()];
 
         super.initAndValidate();
     }
 
-    private void setUpMap(Node node) {
-        map[node.getNr()] = branchCladeCount++;
-        for (int i = 0; i < node.getChildCount(); i++) {
-            setUpMap(node.getChild(i));
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean mapChanged = treeInput.get().somethingIsDirty()
+                && CladeBranches.update(treeInput.get(), cladeBranches, map, mark);
+        return super.requiresRecalculation() || mapChanged;
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(map, 0, storedMap, 0, map.length);
+        for (CladeBranches branches : cladeBranches) {
+            branches.store();
         }
+        super.store();
     }
 
-    private void setUpMRCAs(TaxonSet taxonSet, Node node, Set<String> descendants, List<Node> mrcas) {
-        if (node.isLeaf()) {
-            descendants.add(node.getID());
-
-            // clade contains only one leaf
-            if (taxonSet.getTaxaNames().equals(descendants)) {
-                mrcas.add(node);
-            }
-        } else {
-            for (int i = 0; i < node.getChildCount(); i++) {
-                Set<String> set = new HashSet<String>();
-                setUpMRCAs(taxonSet, node.getChild(i), set, mrcas);
-                descendants.addAll(set);
-            }
-            // node is the MRCA of the current taxon set
-            if (taxonSet.getTaxaNames().equals(descendants)) {
-                mrcas.add(node);
-            }
+    @Override
+    public void restore() {
+        int[] tmp = map;
+        map = storedMap;
+        storedMap = tmp;
+        for (CladeBranches branches : cladeBranches) {
+            branches.restore();
         }
+        super.restore();
     }
 
     ////////////////////////////////////////////////////////////
@@ -82,6 +80,10 @@ public class UCRelaxedMultiCladeClockModel extends AbstractUCRelaxedClockModel i
         return map[nodeNumber];
     }
 
+    protected int getStoredCategoryIndex(int nodeNumber) {
+        return storedMap[nodeNumber];
+    }
+
     protected int getAssignedBranchCount() {
         return branchCladeCount;
     }
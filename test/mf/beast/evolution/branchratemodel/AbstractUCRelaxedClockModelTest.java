@@ -0,0 +1,66 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.parameter.RealParameter;
+
+public class AbstractUCRelaxedClockModelTest {
+
+    @Test
+    public void testNormalizationFollowsLengthsOfSkippedSteps() throws Exception {
+        Random random = new Random(11);
+        Tree tree = TestTrees.randomTree(20, random);
+        LogNormalDistributionModel distribution = CladeBranchesTest.logNormal();
+        RealParameter quantiles = new RealParameter(new Double[] { 0.5 });
+        UCRelaxedCladeClockModel clock = new UCRelaxedCladeClockModel();
+        clock.initByName("tree", tree, "taxonset", TestTrees.taxa(TestTrees.randomClade(tree, 6, random)),
+                "includeStem", true, "distr", distribution, "rateQuantiles", quantiles, "normalize", true);
+        assertNormalized(tree, clock, distribution, quantiles);
+
+        for (int i = 0; i < 500; i++) {
+            tree.setEverythingDirty(false);
+            quantiles.setEverythingDirty(false);
+            TestTrees.moveHeight(tree, random);
+            if (random.nextBoolean()) {
+                quantiles.setValue(random.nextInt(quantiles.getDimension()), random.nextDouble());
+            }
+            clock.requiresRecalculation();
+            // the rates are not asked for in most steps, e.g. because the likelihood
+            // of an earlier step was already -infinity
+            if (random.nextInt(5) == 0) {
+                assertNormalized(tree, clock, distribution, quantiles);
+            }
+            clock.store();
+        }
+    }
+
+    // rate = x * sum(t) / sum(x t) with x the quantile of the rate distribution
+    private static void assertNormalized(Tree tree, AbstractUCRelaxedClockModel clock,
+            LogNormalDistributionModel distribution, RealParameter quantiles) throws Exception {
+        double time = 0.0;
+        double rateTime = 0.0;
+        for (Node node : tree.getNodesAsArray()) {
+            int slot = clock.getSlot(node.getNr());
+            if (!node.isRoot() && slot != -1) {
+                double x = distribution.inverseCumulativeProbability(quantiles.getValue(slot));
+                time += node.getLength();
+                rateTime += x * node.getLength();
+            }
+        }
+        for (Node node : tree.getNodesAsArray()) {
+            int slot = clock.getSlot(node.getNr());
+            if (!node.isRoot() && slot != -1) {
+                double x = distribution.inverseCumulativeProbability(quantiles.getValue(slot));
+                double expected = x * time / rateTime;
+                assertEquals(expected, clock.getRateForBranch(node), 1e-10 * expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.distribution.Exponential;
+import beast.base.inference.distribution.Gamma;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.distribution.ParametricDistribution;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * Compares the gradients of the flexible local clock and its clocks with
+ * central finite differences of a linear function of the branch rates.
+ */
+public class BranchRateGradientTest {
+
+    private static final long SEED = 29;
+    private static final double RELATIVE_TOLERANCE = 1e-5;
+
+    private Tree tree;
+    private double[] weights;
+    // entry of a rate quantile parameter set after the models are built, as
+    // initAndValidate draws the quantiles again
+    private RealParameter overridden;
+    private int overriddenIndex;
+    private double overriddenValue;
+
+    @Test
+    public void testRelaxedClocks() throws Exception {
+        for (int d = 0; d < DISTRIBUTION_COUNT; d++) {
+            for (boolean normalize : new boolean[] { false, true }) {
+                setUp(d);
+                List<RealParameter> lineageParameters = new ArrayList<>();
+                List<RealParameter> cladeParameters = new ArrayList<>();
+                Supplier<ParametricDistribution> lineageDistribution = distribution(d, lineageParameters);
+                Supplier<ParametricDistribution> cladeDistribution = distribution((d + 1) % DISTRIBUTION_COUNT,
+                        cladeParameters);
+                RealParameter lineageQuantiles = new RealParameter(new Double[] { 0.5 });
+                RealParameter cladeQuantiles = new RealParameter(new Double[] { 0.5 });
+                // the relaxed clocks share their mean rate, so the gradient sums over both
+                RealParameter meanRate = positive(0.7);
+                RealParameter mu = positive(2.2);
+                Node cladeNode = TestTrees.randomClade(tree, 4, new Random(SEED + d));
+                Node strictNode = strictClade(cladeNode);
+
+                Supplier<FlexibleLocalClockModel> model = () -> {
+                    UCRelaxedLineageClockModel rootClock = new UCRelaxedLineageClockModel();
+                    rootClock.initByName("tree", tree, "distr", lineageDistribution.get(), "rateQuantiles",
+                            lineageQuantiles, "clock.rate", meanRate, "normalize", normalize);
+                    UCRelaxedCladeClockModel cladeClock = new UCRelaxedCladeClockModel();
+                    cladeClock.initByName("tree", tree, "distr", cladeDistribution.get(), "rateQuantiles",
+                            cladeQuantiles, "clock.rate", meanRate, "normalize", normalize, "taxonset",
+                            TestTrees.taxa(cladeNode), "includeStem", true);
+                    StrictCladeModel strictClock = new StrictCladeModel();
+                    strictClock.initByName("clock.rate", mu, "taxonset", TestTrees.taxa(strictNode), "includeStem",
+                            true);
+                    return flexibleLocalClock(rootClock, cladeClock, strictClock);
+                };
+
+                String name = DISTRIBUTION_NAMES[d] + (normalize ? " normalized" : "");
+                assertGradient(name + " lineage quantiles", model, lineageQuantiles);
+                assertGradient(name + " clade quantiles", model, cladeQuantiles);
+                for (RealParameter parameter : lineageParameters) {
+                    assertGradient(name + " lineage distribution", model, parameter);
+                }
+                for (RealParameter parameter : cladeParameters) {
+                    assertGradient(name + " clade distribution", model, parameter);
+                }
+                assertGradient(name + " mean rate", model, meanRate);
+                assertGradient(name + " strict clade", model, mu);
+            }
+        }
+    }
+
+    @Test
+    public void testStrictLineageWithRateCategories() throws Exception {
+        for (int d = 0; d < DISTRIBUTION_COUNT; d++) {
+            for (boolean normalize : new boolean[] { false, true }) {
+                setUp(d);
+                List<RealParameter> parameters = new ArrayList<>();
+                Supplier<ParametricDistribution> distribution = distribution(d, parameters);
+                RealParameter mu = positive(1.3);
+                RealParameter cladeMean = positive(0.9);
+                Node cladeNode = TestTrees.randomClade(tree, 4, new Random(SEED + d));
+
+                Supplier<FlexibleLocalClockModel> model = () -> {
+                    StrictLineageClockModel rootClock = new StrictLineageClockModel();
+                    rootClock.initByName("clock.rate", mu);
+                    UCRelaxedCladeClockModel cladeClock = new UCRelaxedCladeClockModel();
+                    cladeClock.initByName("tree", tree, "distr", distribution.get(), "rateCategories",
+                            new IntegerParameter(new Integer[] { 0 }), "clock.rate", cladeMean, "normalize",
+                            normalize, "taxonset", TestTrees.taxa(cladeNode), "includeStem", false);
+                    return flexibleLocalClock(rootClock, cladeClock);
+                };
+
+                String name = DISTRIBUTION_NAMES[d] + (normalize ? " normalized" : "") + " categories";
+                assertGradient(name + " strict lineage", model, mu);
+                for (RealParameter parameter : parameters) {
+                    assertGradient(name + " distribution", model, parameter);
+                }
+                assertGradient(name + " clade mean rate", model, cladeMean);
+            }
+        }
+    }
+
+    private void setUp(int seed) {
+        Random random = new Random(SEED + seed);
+        tree = TestTrees.randomTree(30, random);
+        weights = new double[tree.getNodeCount()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = random.nextGaussian();
+        }
+        weights[tree.getRoot().getNr()] = 0.0;
+        overridden = null;
+    }
+
+    // a clade that does not overlap with node
+    private Node strictClade(Node node) {
+        Random random = new Random(SEED);
+        while (true) {
+            Node other = TestTrees.randomClade(tree, 2, random);
+            if (!isAncestor(node, other) && !isAncestor(other, node)) {
+                return other;
+            }
+        }
+    }
+
+    private static boolean isAncestor(Node ancestor, Node node) {
+        for (; node != null; node = node.getParent()) {
+            if (node == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FlexibleLocalClockModel flexibleLocalClock(LineageRateModel rootClock, CladeRateModel... cladeClocks) {
+        List<CladeRateModel> clocks = new ArrayList<>();
+        for (CladeRateModel clock : cladeClocks) {
+            clocks.add(clock);
+        }
+        FlexibleLocalClockModel clock = new FlexibleLocalClockModel();
+        clock.initByName("tree", tree, "rootClockModel", rootClock, "cladeClockModel", clocks);
+        return clock;
+    }
+
+    // sum of weight * rate over the branches
+    private double evaluate(Supplier<FlexibleLocalClockModel> model) {
+        Randomizer.setSeed(SEED);
+        FlexibleLocalClockModel clock = model.get();
+        if (overridden != null) {
+            overridden.setValue(overriddenIndex, overriddenValue);
+        }
+        double[] rates = new double[tree.getNodeCount()];
+        clock.getRatesForAllBranches(rates);
+        double sum = 0.0;
+        for (int i = 0; i < rates.length; i++) {
+            if (weights[i] != 0.0) {
+                sum += weights[i] * rates[i];
+            }
+        }
+        return sum;
+    }
+
+    private void assertGradient(String name, Supplier<FlexibleLocalClockModel> model, RealParameter parameter) {
+        Randomizer.setSeed(SEED);
+        FlexibleLocalClockModel clock = model.get();
+        double[] gradient = new double[parameter.getDimension()];
+        clock.addGradient(weights.clone(), parameter, gradient);
+
+        boolean quantiles = parameter.getUpper() != null && parameter.getUpper() == 1.0;
+        int step = Math.max(1, parameter.getDimension() / 5);
+        for (int i = 0; i < parameter.getDimension(); i += step) {
+            double value = parameter.getValue(i);
+            double h = quantiles ? 1e-7 : 1e-6 * Math.abs(value);
+            double upper = evaluate(model, parameter, i, value + h, quantiles);
+            double lower = evaluate(model, parameter, i, value - h, quantiles);
+            evaluate(model, parameter, i, value, quantiles);
+            overridden = null;
+            double finiteDifference = (upper - lower) / (2 * h);
+            double scale = Math.max(Math.abs(finiteDifference), Math.abs(gradient[i]));
+            assertEquals(name + " [" + i + "]", finiteDifference, gradient[i],
+                    RELATIVE_TOLERANCE * Math.max(scale, 1e-3));
+        }
+    }
+
+    private double evaluate(Supplier<FlexibleLocalClockModel> model, RealParameter parameter, int index,
+            double value, boolean quantiles) {
+        if (quantiles) {
+            overridden = parameter;
+            overriddenIndex = index;
+            overriddenValue = value;
+        } else {
+            parameter.setValue(index, value);
+        }
+        return evaluate(model);
+    }
+
+    private static RealParameter positive(double value) {
+        RealParameter parameter = new RealParameter(new Double[] { value });
+        parameter.setLower(0.0);
+        parameter.setUpper(Double.POSITIVE_INFINITY);
+        return parameter;
+    }
+
+    private static final String[] DISTRIBUTION_NAMES = { "LogNormal real space", "LogNormal with offset",
+            "Gamma ShapeScale", "Gamma ShapeRate", "Gamma ShapeMean", "Gamma OneParameter", "Exponential" };
+    private static final int DISTRIBUTION_COUNT = DISTRIBUTION_NAMES.length;
+
+    // a new distribution for every model, from parameters that are shared and
+    // added to parameters
+    private static Supplier<ParametricDistribution> distribution(int d, List<RealParameter> parameters) {
+        switch (d) {
+        case 0: {
+            RealParameter m = positive(1.3);
+            RealParameter s = positive(0.4);
+            parameters.add(m);
+            parameters.add(s);
+            return () -> {
+                LogNormalDistributionModel distribution = new LogNormalDistributionModel();
+                distribution.initByName("M", m, "S", s, "meanInRealSpace", true);
+                return distribution;
+            };
+        }
+        case 1: {
+            RealParameter m = new RealParameter(new Double[] { -0.3 });
+            RealParameter s = positive(0.6);
+            parameters.add(m);
+            parameters.add(s);
+            return () -> {
+                LogNormalDistributionModel distribution = new LogNormalDistributionModel();
+                distribution.initByName("M", m, "S", s, "meanInRealSpace", false, "offset", 0.2);
+                return distribution;
+            };
+        }
+        case 2:
+        case 3:
+        case 4:
+        case 5: {
+            Gamma.mode mode = Gamma.mode.values()[d - 2];
+            RealParameter alpha = positive(2.5);
+            RealParameter beta = positive(1.7);
+            parameters.add(alpha);
+            if (mode != Gamma.mode.OneParameter) {
+                parameters.add(beta);
+            }
+            return () -> {
+                Gamma distribution = new Gamma();
+                distribution.initByName("alpha", alpha, "beta", beta, "mode", mode);
+                return distribution;
+            };
+        }
+        default: {
+            RealParameter mean = positive(0.8);
+            parameters.add(mean);
+            return () -> {
+                Exponential distribution = new Exponential();
+                distribution.initByName("mean", mean);
+                return distribution;
+            };
+        }
+        }
+    }
+}
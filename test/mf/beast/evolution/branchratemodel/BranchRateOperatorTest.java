@@ -0,0 +1,207 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * Runs the rate operators on a relaxed clade clock without likelihood, so that
+ * a proposal is accepted with its Hastings ratio.
+ */
+public class BranchRateOperatorTest {
+
+    private static final int STEP_COUNT = 20000;
+
+    private Tree tree;
+    private UCRelaxedCladeClockModel clock;
+    private Parameter.Base<?> rates;
+    private RealParameter meanRate;
+    private int[] branches;
+    private int branchCount;
+
+    @Test
+    public void testPriorDrawCategories() throws Exception {
+        setUp(true);
+        Operator operator = operator(new BranchRatePriorDrawOperator());
+        IntegerParameter categories = (IntegerParameter) rates;
+        int categoryCount = categories.getUpper() - categories.getLower() + 1;
+        long[] counts = new long[categoryCount];
+        for (int step = 0; step < STEP_COUNT; step++) {
+            Object[] before = values();
+            run(operator);
+            assertChanged(before, 1);
+            for (int i = 0; i < branchCount; i++) {
+                counts[categories.getValue(clock.getSlot(branches[i])) - categories.getLower()]++;
+            }
+        }
+        // the categories are drawn uniformly
+        double expected = (double) STEP_COUNT * branchCount / categoryCount;
+        for (int c = 0; c < categoryCount; c++) {
+            assertEquals("category " + c, expected, counts[c], 0.15 * expected);
+        }
+    }
+
+    @Test
+    public void testPriorDrawQuantiles() throws Exception {
+        setUp(false);
+        Operator operator = operator(new BranchRatePriorDrawOperator());
+        int binCount = 10;
+        long[] counts = new long[binCount];
+        for (int step = 0; step < STEP_COUNT; step++) {
+            Object[] before = values();
+            run(operator);
+            assertChanged(before, 1);
+            for (int i = 0; i < branchCount; i++) {
+                counts[(int) (((RealParameter) rates).getValue(clock.getSlot(branches[i])) * binCount)]++;
+            }
+        }
+        double expected = (double) STEP_COUNT * branchCount / binCount;
+        for (int b = 0; b < binCount; b++) {
+            assertEquals("bin " + b, expected, counts[b], 0.1 * expected);
+        }
+    }
+
+    @Test
+    public void testAdjacentSwap() throws Exception {
+        for (boolean useCategories : new boolean[] { true, false }) {
+            setUp(useCategories);
+            Operator operator = operator(new AdjacentBranchRateSwapOperator());
+            for (int step = 0; step < STEP_COUNT / 10; step++) {
+                Object[] before = values();
+                run(operator);
+                assertChanged(before, 2);
+                // the values of the clock are only permuted
+                Object[] after = values();
+                Arrays.sort(before);
+                Arrays.sort(after);
+                assertTrue(Arrays.equals(before, after));
+            }
+        }
+    }
+
+    @Test
+    public void testRatePreservingMeanScale() throws Exception {
+        for (boolean useCategories : new boolean[] { true, false }) {
+            setUp(useCategories);
+            Operator operator = operator(new RatePreservingMeanScaleOperator());
+            int acceptedCount = 0;
+            for (int step = 0; step < STEP_COUNT / 10; step++) {
+                double[] branchRates = branchRates();
+                double substitutions = substitutions(branchRates);
+                Object[] before = values();
+                if (run(operator)) {
+                    acceptedCount++;
+                    assertChanged(before, branchCount);
+                    double[] newBranchRates = branchRates();
+                    if (useCategories) {
+                        assertEquals(substitutions, substitutions(newBranchRates), 1e-10 * substitutions);
+                    } else {
+                        for (int i = 0; i < branchCount; i++) {
+                            assertEquals(branchRates[i], newBranchRates[i], 1e-8 * branchRates[i]);
+                        }
+                    }
+                }
+            }
+            assertTrue(acceptedCount > 0);
+        }
+    }
+
+    private void setUp(boolean useCategories) {
+        Random random = new Random(useCategories ? 5 : 6);
+        Randomizer.setSeed(random.nextLong());
+        tree = TestTrees.randomTree(20, random);
+        rates = useCategories ? new IntegerParameter(new Integer[] { 0 }) : new RealParameter(new Double[] { 0.5 });
+        meanRate = new RealParameter(new Double[] { 1.0 });
+        meanRate.setLower(0.0);
+        meanRate.setUpper(Double.POSITIVE_INFINITY);
+        clock = new UCRelaxedCladeClockModel();
+        clock.initByName("tree", tree, "taxonset", TestTrees.taxa(TestTrees.randomClade(tree, 8, random)),
+                "includeStem", true, "distr", CladeBranchesTest.logNormal(),
+                useCategories ? "rateCategories" : "rateQuantiles", rates, "clock.rate", meanRate);
+        branches = new int[tree.getNodeCount()];
+        branchCount = clock.getAssignedBranches(branches);
+        clock.store();
+    }
+
+    private Operator operator(BranchRateOperator operator) {
+        operator.initByName("clock", clock, "weight", 1.0);
+        return operator;
+    }
+
+    // one step of the chain, true if the proposal was accepted
+    private boolean run(Operator operator) {
+        rates.setEverythingDirty(false);
+        meanRate.setEverythingDirty(false);
+        Object[] values = values();
+        double mean = meanRate.getValue();
+        double logHastingsRatio = operator.proposal();
+        if (logHastingsRatio == Double.NEGATIVE_INFINITY
+                || (logHastingsRatio < 0.0 && Randomizer.nextDouble() > Math.exp(logHastingsRatio))) {
+            for (int i = 0; i < values.length; i++) {
+                if (rates instanceof IntegerParameter) {
+                    ((IntegerParameter) rates).setValue(i, (Integer) values[i]);
+                } else {
+                    ((RealParameter) rates).setValue(i, (Double) values[i]);
+                }
+            }
+            meanRate.setValue(mean);
+            clock.requiresRecalculation();
+            clock.restore();
+            return false;
+        }
+        clock.requiresRecalculation();
+        clock.store();
+        return true;
+    }
+
+    private Object[] values() {
+        Object[] values = new Object[rates.getDimension()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rates.getValue(i);
+        }
+        return values;
+    }
+
+    // at most maxCount entries changed, all of them slots of branches of the clock
+    private void assertChanged(Object[] before, int maxCount) {
+        boolean[] isClockSlot = new boolean[before.length];
+        for (int i = 0; i < branchCount; i++) {
+            isClockSlot[clock.getSlot(branches[i])] = true;
+        }
+        int count = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (!before[i].equals(rates.getValue(i))) {
+                assertTrue("slot " + i + " is not used by the clock", isClockSlot[i]);
+                count++;
+            }
+        }
+        assertTrue(count + " entries changed", count <= maxCount);
+    }
+
+    private double[] branchRates() {
+        double[] branchRates = new double[branchCount];
+        for (int i = 0; i < branchCount; i++) {
+            branchRates[i] = clock.getRateForBranch(tree.getNode(branches[i]));
+        }
+        return branchRates;
+    }
+
+    private double substitutions(double[] branchRates) {
+        double substitutions = 0.0;
+        for (int i = 0; i < branchCount; i++) {
+            substitutions += branchRates[i] * tree.getNode(branches[i]).getLength();
+        }
+        return substitutions;
+    }
+}
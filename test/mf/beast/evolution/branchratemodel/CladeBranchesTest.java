@@ -0,0 +1,188 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+public class CladeBranchesTest {
+
+    private static final int TAXON_COUNT = 30;
+    private static final int MOVE_COUNT = 2000;
+
+    @Test
+    public void testSlotsAreNeverShared() {
+        Random random = new Random(17);
+        for (int rep = 0; rep < 10; rep++) {
+            Tree tree = TestTrees.randomTree(TAXON_COUNT, random);
+            List<Clade> clades = new ArrayList<>();
+            List<Node> mrcas = new ArrayList<>();
+            while (clades.size() < 3) {
+                Node mrca = TestTrees.randomClade(tree, 2, random);
+                if (disjoint(mrca, mrcas)) {
+                    Clade clade = new Clade();
+                    clade.initByName("taxonset", TestTrees.taxa(mrca), "includeStem", random.nextBoolean());
+                    clades.add(clade);
+                    mrcas.add(mrca);
+                }
+            }
+            UCRelaxedMultiCladeClockModel clock = new UCRelaxedMultiCladeClockModel();
+            clock.initByName("tree", tree, "clade", clades, "distr", logNormal(), "rateCategories",
+                    new IntegerParameter(new Integer[] { 0 }));
+            int slotCount = clock.getAssignedBranchCount();
+            assertSlotsUnique(tree, clock, slotCount, true);
+
+            // the moves are not constrained, so the clades are not always monophyletic
+            for (int i = 0; i < MOVE_COUNT; i++) {
+                tree.setEverythingDirty(false);
+                TestTrees.subtreePruneRegraft(tree, random);
+                clock.requiresRecalculation();
+                clock.store();
+                // the slots of a clade are dormant while it is not monophyletic
+                assertSlotsUnique(tree, clock, slotCount, false);
+                assertCladeSlots(tree, clock, clades);
+            }
+        }
+    }
+
+    @Test
+    public void testCladeSlotsOnlyDependOnTheTree() {
+        Random random = new Random(5);
+        Tree tree = TestTrees.randomTree(TAXON_COUNT, random);
+        Node mrca = TestTrees.randomClade(tree, 4, random);
+        Clade clade = new Clade();
+        clade.initByName("taxonset", TestTrees.taxa(mrca), "includeStem", true);
+        UCRelaxedCladeClockModel clock = new UCRelaxedCladeClockModel();
+        clock.initByName("tree", tree, "taxonset", TestTrees.taxa(mrca), "includeStem", true, "distr", logNormal(),
+                "rateCategories", new IntegerParameter(new Integer[] { 0 }));
+        int slotCount = clock.getAssignedBranchCount();
+        int monophyleticCount = 0;
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            tree.setEverythingDirty(false);
+            TestTrees.subtreePruneRegraft(tree, random);
+            clock.requiresRecalculation();
+            clock.store();
+            if (cladeBranches(tree, clade.getTaxonSet().getTaxaNames(), true) != null) {
+                monophyleticCount++;
+                assertSlotsUnique(tree, clock, slotCount, true);
+            }
+            assertCladeSlots(tree, clock, Collections.singletonList(clade));
+        }
+        assertTrue(monophyleticCount > 0 && monophyleticCount < MOVE_COUNT);
+    }
+
+    // no two branches share a slot, and if allUsed every slot has a branch
+    static void assertSlotsUnique(Tree tree, AbstractUCRelaxedClockModel clock, int slotCount, boolean allUsed) {
+        boolean[] used = new boolean[slotCount];
+        for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+            int slot = clock.getSlot(nodeNr);
+            if (slot != -1) {
+                assertTrue(slot < slotCount);
+                assertFalse("slot " + slot + " is shared", used[slot]);
+                used[slot] = true;
+            }
+        }
+        if (allUsed) {
+            for (int slot = 0; slot < slotCount; slot++) {
+                assertTrue("slot " + slot + " is not used", used[slot]);
+            }
+        }
+    }
+
+    // the branches of every monophyletic clade take the slots of the clade in the
+    // order of their node numbers, the other branches have none
+    private static void assertCladeSlots(Tree tree, AbstractUCRelaxedClockModel clock, List<Clade> clades) {
+        int[] slots = new int[tree.getNodeCount()];
+        Arrays.fill(slots, -1);
+        int firstSlot = 0;
+        for (Clade clade : clades) {
+            Set<String> taxa = clade.getTaxonSet().getTaxaNames();
+            boolean includeStem = clade.includeStem() || taxa.size() == 1;
+            int[] branches = cladeBranches(tree, taxa, includeStem);
+            if (branches != null) {
+                for (int i = 0; i < branches.length; i++) {
+                    slots[branches[i]] = firstSlot + i;
+                }
+            }
+            firstSlot += 2 * taxa.size() - (includeStem ? 1 : 2);
+        }
+        for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+            assertEquals("branch " + nodeNr, slots[nodeNr], clock.getSlot(nodeNr));
+        }
+    }
+
+    // node numbers of the branches of the clade in increasing order, null if it
+    // is not monophyletic
+    private static int[] cladeBranches(Tree tree, Set<String> taxa, boolean includeStem) {
+        Node mrca = null;
+        for (Node leaf : tree.getExternalNodes()) {
+            if (taxa.contains(leaf.getID())) {
+                mrca = leaf;
+                break;
+            }
+        }
+        while (mrca.getAllLeafNodes().size() < taxa.size()) {
+            mrca = mrca.getParent();
+        }
+        for (Node leaf : mrca.getAllLeafNodes()) {
+            if (!taxa.contains(leaf.getID())) {
+                return null;
+            }
+        }
+        List<Node> nodes = new ArrayList<>();
+        collect(mrca, nodes);
+        if (!includeStem) {
+            nodes.remove(mrca);
+        }
+        int[] branches = new int[nodes.size()];
+        for (int i = 0; i < branches.length; i++) {
+            branches[i] = nodes.get(i).getNr();
+        }
+        Arrays.sort(branches);
+        return branches;
+    }
+
+    private static void collect(Node node, List<Node> nodes) {
+        nodes.add(node);
+        for (Node child : node.getChildren()) {
+            collect(child, nodes);
+        }
+    }
+
+    private static boolean disjoint(Node node, List<Node> others) {
+        for (Node other : others) {
+            for (Node n = node; n != null; n = n.getParent()) {
+                if (n == other) {
+                    return false;
+                }
+            }
+            for (Node n = other; n != null; n = n.getParent()) {
+                if (n == node) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static LogNormalDistributionModel logNormal() {
+        LogNormalDistributionModel distribution = new LogNormalDistributionModel();
+        distribution.initByName("M", new RealParameter(new Double[] { 1.0 }), "S",
+                new RealParameter(new Double[] { 0.5 }), "meanInRealSpace", true);
+        return distribution;
+    }
+}
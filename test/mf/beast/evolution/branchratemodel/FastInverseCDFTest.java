@@ -0,0 +1,193 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.inference.distribution.Exponential;
+import beast.base.inference.distribution.Gamma;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.distribution.ParametricDistribution;
+import beast.base.inference.parameter.RealParameter;
+
+public class FastInverseCDFTest {
+
+    // default inverseCDFTolerance of the relaxed clocks
+    private static final double TOLERANCE = 1e-6;
+    // absolute accuracy of the exact inverse CDFs, which are found by a root solver
+    private static final double EXACT_ACCURACY = 1e-9;
+
+    private static final double[] LOWER_TAIL = { 1e-14, 1e-12, 1e-10, 1e-9, 1e-7, 1e-5, 1e-3 };
+    // closer to 1 the exact inverse CDFs lose accuracy, as the CDF is found from a
+    // difference with 1
+    private static final double[] UPPER_TAIL = { 1e-9, 1e-7, 1e-5, 1e-3 };
+
+    @Test
+    public void testLogNormal() throws Exception {
+        assertAccurate(logNormal(1.0, 0.1, true, 0.0));
+        assertAccurate(logNormal(1.0, 1.0, true, 0.0));
+        assertAccurate(logNormal(-2.0, 2.5, false, 0.0));
+        assertAccurate(logNormal(1.0, 0.5, true, 0.5));
+    }
+
+    @Test
+    public void testExponential() throws Exception {
+        assertAccurate(exponential(1.0, 0.0));
+        assertAccurate(exponential(0.01, 0.0));
+        assertAccurate(exponential(50.0, 0.0));
+        assertAccurate(exponential(1.0, 2.0));
+    }
+
+    @Test
+    public void testGamma() throws Exception {
+        assertAccurate(gamma(0.5, 2.0, Gamma.mode.ShapeScale));
+        assertAccurate(gamma(0.3, 1.0, Gamma.mode.ShapeScale));
+        assertAccurate(gamma(2.0, 3.0, Gamma.mode.ShapeRate));
+        assertAccurate(gamma(5.0, 1.0, Gamma.mode.ShapeMean));
+        assertAccurate(gamma(20.0, 1.0, Gamma.mode.OneParameter));
+    }
+
+    @Test
+    public void testUpdateAfterParameterChange() throws Exception {
+        RealParameter alpha = new RealParameter(new Double[] { 2.0 });
+        Gamma gamma = new Gamma();
+        gamma.initByName("alpha", alpha, "beta", new RealParameter(new Double[] { 0.5 }));
+        FastInverseCDF inverseCDF = FastInverseCDF.create(gamma, TOLERANCE);
+        inverseCDF.update();
+        assertAccurate(gamma, inverseCDF);
+        alpha.setValue(0, 7.0);
+        inverseCDF.update();
+        assertAccurate(gamma, inverseCDF);
+
+        // the table of the shape is reused for any scale
+        for (Gamma.mode mode : Gamma.mode.values()) {
+            RealParameter beta = new RealParameter(new Double[] { 0.5 });
+            gamma = new Gamma();
+            gamma.initByName("alpha", new RealParameter(new Double[] { 3.0 }), "beta", beta, "mode", mode);
+            inverseCDF = FastInverseCDF.create(gamma, TOLERANCE);
+            inverseCDF.update();
+            assertAccurate(gamma, inverseCDF);
+            beta.setValue(0, 40.0);
+            inverseCDF.update();
+            assertAccurate(gamma, inverseCDF);
+        }
+
+        RealParameter s = new RealParameter(new Double[] { 0.3 });
+        LogNormalDistributionModel logNormal = new LogNormalDistributionModel();
+        logNormal.initByName("M", new RealParameter(new Double[] { 1.0 }), "S", s, "meanInRealSpace", true);
+        inverseCDF = FastInverseCDF.create(logNormal, TOLERANCE);
+        inverseCDF.update();
+        assertAccurate(logNormal, inverseCDF);
+        s.setValue(0, 1.5);
+        inverseCDF.update();
+        assertAccurate(logNormal, inverseCDF);
+    }
+
+    @Test
+    public void testBatchMatchesScalar() throws Exception {
+        double[] p = batchProbabilities();
+        double[] z = new double[p.length];
+        FastInverseCDF.normalQuantiles(p, z, p.length);
+        for (int i = 0; i < p.length; i++) {
+            assertSameBits("p=" + p[i], FastInverseCDF.normalQuantile(p[i]), z[i]);
+        }
+
+        ParametricDistribution[] distributions = { logNormal(1.0, 0.5, true, 0.0), logNormal(-2.0, 2.5, false, 0.5),
+                exponential(1.0, 0.0), exponential(3.0, 1.0), gamma(0.5, 2.0, Gamma.mode.ShapeScale),
+                gamma(5.0, 1.0, Gamma.mode.ShapeMean) };
+        for (ParametricDistribution distribution : distributions) {
+            FastInverseCDF inverseCDF = FastInverseCDF.create(distribution, TOLERANCE);
+            inverseCDF.update();
+            double[] x = new double[p.length];
+            // a shorter count leaves the rest of x alone
+            int count = p.length - 3;
+            x[count] = -1.0;
+            inverseCDF.inverseCumulativeProbabilities(p, x, count);
+            for (int i = 0; i < count; i++) {
+                assertSameBits(distribution.getClass().getSimpleName() + " p=" + p[i],
+                        inverseCDF.inverseCumulativeProbability(p[i]), x[i]);
+            }
+            assertSameBits("beyond count", -1.0, x[count]);
+        }
+    }
+
+    // 0, 1, both tails, both sides of the boundaries of the central region of
+    // the normal quantile and random probabilities
+    private static double[] batchProbabilities() {
+        double[] fixed = { 0.0, 1.0, Double.MIN_VALUE, 1e-300, 1e-14, 1e-10, 1.0 - 1e-10, 1.0 - 1e-16, 0.5,
+                0.075, Math.nextDown(0.075), Math.nextUp(0.075), 0.925, Math.nextDown(0.925), Math.nextUp(0.925) };
+        Random random = new Random(2);
+        double[] p = new double[fixed.length + 1000];
+        System.arraycopy(fixed, 0, p, 0, fixed.length);
+        for (int i = fixed.length; i < p.length; i++) {
+            p[i] = random.nextDouble();
+        }
+        return p;
+    }
+
+    private static void assertSameBits(String message, double expected, double actual) {
+        assertEquals(message, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    private static void assertAccurate(ParametricDistribution distribution) throws Exception {
+        FastInverseCDF inverseCDF = FastInverseCDF.create(distribution, TOLERANCE);
+        assertNotNull(inverseCDF);
+        inverseCDF.update();
+        assertAccurate(distribution, inverseCDF);
+    }
+
+    // the tails, a regular grid and random probabilities
+    private static void assertAccurate(ParametricDistribution distribution, FastInverseCDF inverseCDF)
+            throws Exception {
+        for (double p : LOWER_TAIL) {
+            assertAccurate(distribution, inverseCDF, p);
+        }
+        for (double p : UPPER_TAIL) {
+            assertAccurate(distribution, inverseCDF, 1.0 - p);
+        }
+        for (int i = 1; i < 1000; i++) {
+            assertAccurate(distribution, inverseCDF, i / 1000.0);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            assertAccurate(distribution, inverseCDF, random.nextDouble());
+        }
+    }
+
+    private static void assertAccurate(ParametricDistribution distribution, FastInverseCDF inverseCDF, double p)
+            throws Exception {
+        double exact = distribution.inverseCumulativeProbability(p);
+        double fast = inverseCDF.inverseCumulativeProbability(p);
+        double error = Math.abs(fast - exact);
+        assertTrue(distribution.getClass().getSimpleName() + " p=" + p + " exact " + exact + " fast " + fast,
+                error <= TOLERANCE * Math.abs(exact) + EXACT_ACCURACY);
+    }
+
+    static LogNormalDistributionModel logNormal(double m, double s, boolean meanInRealSpace, double offset) {
+        LogNormalDistributionModel distribution = new LogNormalDistributionModel();
+        distribution.initByName("M", new RealParameter(new Double[] { m }), "S", new RealParameter(new Double[] { s }),
+                "meanInRealSpace", meanInRealSpace, "offset", offset);
+        return distribution;
+    }
+
+    static Exponential exponential(double mean, double offset) {
+        Exponential distribution = new Exponential();
+        distribution.initByName("mean", new RealParameter(new Double[] { mean }), "offset", offset);
+        return distribution;
+    }
+
+    static Gamma gamma(double alpha, double beta, Gamma.mode mode) {
+        Gamma distribution = new Gamma();
+        if (mode == Gamma.mode.OneParameter) {
+            distribution.initByName("alpha", new RealParameter(new Double[] { alpha }), "mode", mode);
+        } else {
+            distribution.initByName("alpha", new RealParameter(new Double[] { alpha }), "beta",
+                    new RealParameter(new Double[] { beta }), "mode", mode);
+        }
+        return distribution;
+    }
+}
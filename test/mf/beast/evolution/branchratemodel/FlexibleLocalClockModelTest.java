@@ -0,0 +1,217 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+
+public class FlexibleLocalClockModelTest {
+
+    private static final int TAXON_COUNT = 30;
+    private static final int CLADE_COUNT = 4;
+
+    private Tree tree;
+    private BooleanParameter cladeIndicators;
+    private IntegerParameter categories;
+    private UCRelaxedLineageClockModel rootClock;
+    private FlexibleLocalClockModel clock;
+
+    @Test
+    public void testRootClockSlotsAfterIndicatorToggles() {
+        Random random = new Random(3);
+        for (int rep = 0; rep < 10; rep++) {
+            setUp(random, true);
+
+            // the root clock has a slot for every branch whichever clocks are switched on
+            int slotCount = tree.getNodeCount() - 1;
+            assertEquals(slotCount, categories.getDimension());
+            assertRootClockSlots(slotCount);
+
+            for (int i = 0; i < 500; i++) {
+                tree.setEverythingDirty(false);
+                cladeIndicators.setEverythingDirty(false);
+                if (random.nextBoolean()) {
+                    int c = random.nextInt(CLADE_COUNT);
+                    cladeIndicators.setValue(c, !cladeIndicators.getValue(c));
+                }
+                if (random.nextInt(4) == 0) {
+                    // a branch that leaves the root clock may come back later
+                    TestTrees.subtreePruneRegraft(tree, random);
+                }
+                propose();
+                assertEquals(slotCount, categories.getDimension());
+                assertRootClockSlots(slotCount);
+            }
+        }
+    }
+
+    @Test
+    public void testRejectedIndicatorToggleRestoresRootClock() {
+        Random random = new Random(7);
+        for (int rep = 0; rep < 10; rep++) {
+            setUp(random, true);
+            int slotCount = tree.getNodeCount() - 1;
+            for (int i = 0; i < 500; i++) {
+                tree.setEverythingDirty(false);
+                cladeIndicators.setEverythingDirty(false);
+                double[] rates = rootClockRates();
+                int c = random.nextInt(CLADE_COUNT);
+                cladeIndicators.setValue(c, !cladeIndicators.getValue(c));
+                propose();
+                rootClockRates();
+                if (random.nextBoolean()) {
+                    // only the indicators and the clocks that depend on them are
+                    // restored, the root clock is not
+                    cladeIndicators.setValue(c, !cladeIndicators.getValue(c));
+                    clock.restore();
+                    assertRootClockSlots(slotCount);
+                    assertRates(rates, rootClockRates());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRootClockRatesOnlyDependOnTheState() {
+        Random random = new Random(11);
+        for (int rep = 0; rep < 10; rep++) {
+            setUp(random, true);
+            for (int i = 0; i < 100; i++) {
+                tree.setEverythingDirty(false);
+                TestTrees.subtreePruneRegraft(tree, random);
+                propose();
+                double[] rates = rootClockRates();
+                // a clade switched on and off again gives its branches the same rates
+                int c = random.nextInt(CLADE_COUNT);
+                for (int k = 0; k < 2; k++) {
+                    tree.setEverythingDirty(false);
+                    cladeIndicators.setEverythingDirty(false);
+                    cladeIndicators.setValue(c, !cladeIndicators.getValue(c));
+                    propose();
+                    rootClockRates();
+                }
+                assertRates(rates, rootClockRates());
+            }
+        }
+    }
+
+    @Test
+    public void testRootClockSizeWithoutIndicators() {
+        Random random = new Random(13);
+        for (int rep = 0; rep < 10; rep++) {
+            setUp(random, false);
+            // a slot and a rate category for every branch of the root clock
+            int branchCount = rootClock.getAssignedBranches(new int[tree.getNodeCount()]);
+            assertEquals(branchCount, categories.getDimension());
+            assertEquals(branchCount - 1, (int) categories.getUpper());
+            assertRootClockSlots(branchCount);
+        }
+    }
+
+    @Test
+    public void testIncrementalAssignmentMatchesRebuild() {
+        Random random = new Random(17);
+        for (int rep = 0; rep < 10; rep++) {
+            setUp(random, true);
+            for (int i = 0; i < 200; i++) {
+                tree.setEverythingDirty(false);
+                cladeIndicators.setEverythingDirty(false);
+                if (random.nextBoolean()) {
+                    int c = random.nextInt(CLADE_COUNT);
+                    cladeIndicators.setValue(c, !cladeIndicators.getValue(c));
+                }
+                // the regrafted parent is also given a new height, so it is both
+                // filthy and dirty
+                TestTrees.subtreePruneRegraft(tree, random);
+                propose();
+
+                FlexibleLocalClockModel rebuilt = new FlexibleLocalClockModel();
+                rebuilt.initByName("tree", tree, "rootClockModel", strictLineageClock(), "cladeClockModel",
+                        clock.cladeRateModelInputs.get(), "cladeIndicators", cladeIndicators);
+                for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+                    assertEquals("branch " + nodeNr, rebuilt.getClockIndex(nodeNr), clock.getClockIndex(nodeNr));
+                }
+            }
+        }
+    }
+
+    private static StrictLineageClockModel strictLineageClock() {
+        StrictLineageClockModel clock = new StrictLineageClockModel();
+        clock.initAndValidate();
+        return clock;
+    }
+
+    private void setUp(Random random, boolean sampleIndicators) {
+        tree = TestTrees.randomTree(TAXON_COUNT, random);
+        List<CladeRateModel> clades = new ArrayList<>();
+        Boolean[] indicators = new Boolean[CLADE_COUNT];
+        for (int c = 0; c < CLADE_COUNT; c++) {
+            StrictCladeModel clade = new StrictCladeModel();
+            clade.initByName("taxonset", TestTrees.taxa(TestTrees.randomClade(tree, 2, random)), "includeStem",
+                    random.nextBoolean());
+            clades.add(clade);
+            indicators[c] = random.nextBoolean();
+        }
+        cladeIndicators = new BooleanParameter(indicators);
+        categories = new IntegerParameter(new Integer[] { 0 });
+        rootClock = new UCRelaxedLineageClockModel();
+        rootClock.initByName("tree", tree, "distr", CladeBranchesTest.logNormal(), "rateCategories", categories);
+        clock = new FlexibleLocalClockModel();
+        if (sampleIndicators) {
+            clock.initByName("tree", tree, "rootClockModel", rootClock, "cladeClockModel", clades, "cladeIndicators",
+                    cladeIndicators);
+        } else {
+            clock.initByName("tree", tree, "rootClockModel", rootClock, "cladeClockModel", clades);
+        }
+    }
+
+    // the clocks that depend on the proposed state are stored before they are
+    // updated, as in BEAST: the root clock only depends on the tree
+    private void propose() {
+        if (tree.somethingIsDirty()) {
+            rootClock.store();
+        }
+        clock.store();
+        if (tree.somethingIsDirty()) {
+            rootClock.requiresRecalculation();
+        }
+        clock.requiresRecalculation();
+    }
+
+    // rates of the branches of the root clock, NaN for the others
+    private double[] rootClockRates() {
+        double[] rates = new double[tree.getNodeCount()];
+        rootClock.getRatesForAllBranches(rates);
+        for (int nodeNr = 0; nodeNr < rates.length; nodeNr++) {
+            if (rootClock.getSlot(nodeNr) != -1) {
+                assertTrue("branch " + nodeNr, Double.isFinite(rates[nodeNr]));
+            } else {
+                rates[nodeNr] = Double.NaN;
+            }
+        }
+        return rates;
+    }
+
+    private static void assertRates(double[] expected, double[] rates) {
+        for (int nodeNr = 0; nodeNr < rates.length; nodeNr++) {
+            assertEquals("branch " + nodeNr, expected[nodeNr], rates[nodeNr], 0.0);
+        }
+    }
+
+    // the branches of the root clock have distinct slots, the others none
+    private void assertRootClockSlots(int slotCount) {
+        CladeBranchesTest.assertSlotsUnique(tree, rootClock, slotCount, false);
+        for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+            boolean inRootClock = !tree.getNode(nodeNr).isRoot() && clock.getClockIndex(nodeNr) == 0;
+            assertTrue("branch " + nodeNr, inRootClock == (rootClock.getSlot(nodeNr) != -1));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateTableCacheTest {
+
+    @Test
+    public void testSizeIsBounded() throws Exception {
+        RateTableCache.clear();
+        int tableSize = RateTableCache.MAX_TABLE_SIZE;
+        int tableCount = (int) (RateTableCache.MAX_SIZE / tableSize);
+        RateTableCache.Key[] keys = new RateTableCache.Key[2 * tableCount];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(i, tableSize);
+            RateTableCache.put(keys[i], new double[tableSize]);
+            assertTrue(RateTableCache.size() <= RateTableCache.MAX_SIZE);
+            // the first table is used all along and stays cached
+            assertNotNull(RateTableCache.get(keys[0]));
+        }
+        assertEquals(RateTableCache.MAX_SIZE, RateTableCache.size());
+        assertNull(RateTableCache.get(keys[1]));
+        assertNotNull(RateTableCache.get(keys[keys.length - 1]));
+
+        // putting a table again does not count it twice
+        RateTableCache.put(keys[0], new double[tableSize]);
+        assertEquals(RateTableCache.MAX_SIZE, RateTableCache.size());
+        RateTableCache.clear();
+    }
+
+    @Test
+    public void testLargeTablesAreNotCached() throws Exception {
+        RateTableCache.clear();
+        RateTableCache.Key small = key(0, 10);
+        RateTableCache.put(small, new double[10]);
+        RateTableCache.Key large = key(0, RateTableCache.MAX_TABLE_SIZE + 1);
+        RateTableCache.put(large, new double[RateTableCache.MAX_TABLE_SIZE + 1]);
+        assertNull(RateTableCache.get(large));
+        assertNotNull(RateTableCache.get(small));
+        assertEquals(10, RateTableCache.size());
+        RateTableCache.clear();
+    }
+
+    private static RateTableCache.Key key(int i, int categoryCount) {
+        return RateTableCache.keyBuilder(FastInverseCDFTest.exponential(1.0 + i, 0.0), 0.0).build(categoryCount);
+    }
+}
@@ -0,0 +1,162 @@
+package mf.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+/**
+ * Several threads asking for the rates of the same state get exactly the
+ * rates of the single-threaded path, over a chain of accepted and rejected
+ * steps.
+ */
+public class RelaxedClockConcurrencyTest {
+
+    private static final int THREAD_COUNT = 4;
+    private static final int STEP_COUNT = 1000;
+
+    @Test
+    public void testQuantiles() throws Exception {
+        run(false);
+    }
+
+    @Test
+    public void testCategories() throws Exception {
+        run(true);
+    }
+
+    private void run(boolean useCategories) throws Exception {
+        Random random = new Random(23);
+        long seed = random.nextLong();
+        // both chains make the same moves on their own copy of the model
+        Chain single = new Chain(seed, useCategories);
+        Chain concurrent = new Chain(seed, useCategories);
+        int nodeCount = single.tree.getNodeCount();
+        double[] acceptedRates = new double[nodeCount];
+        single.clock.getRatesForAllBranches(acceptedRates);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            for (int step = 0; step < STEP_COUNT; step++) {
+                single.propose();
+                concurrent.propose();
+
+                double[] expected = new double[nodeCount];
+                single.clock.getRatesForAllBranches(expected);
+
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<double[]>> results = new ArrayList<>();
+                for (int t = 0; t < THREAD_COUNT; t++) {
+                    final boolean bulk = t % 2 == 0;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        double[] rates = new double[nodeCount];
+                        if (bulk) {
+                            concurrent.clock.getRatesForAllBranches(rates);
+                        } else {
+                            for (int i = nodeCount - 1; i >= 0; i--) {
+                                rates[i] = concurrent.clock.getRateForBranch(concurrent.tree.getNode(i));
+                            }
+                        }
+                        return rates;
+                    }));
+                }
+                start.countDown();
+                for (Future<double[]> result : results) {
+                    assertArrayEquals("step " + step, expected, result.get(), 0.0);
+                }
+
+                boolean accept = single.changedSlot == -1 || random.nextBoolean();
+                single.accept(accept);
+                concurrent.accept(accept);
+                if (accept) {
+                    acceptedRates = expected;
+                } else {
+                    // the rates of the stored state were not overwritten
+                    for (Chain chain : new Chain[] { single, concurrent }) {
+                        double[] restored = new double[nodeCount];
+                        chain.clock.getRatesForAllBranches(restored);
+                        assertArrayEquals("step " + step, acceptedRates, restored, 0.0);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // a relaxed clade clock with normalization and the moves of a chain
+    private static final class Chain {
+        final Random random;
+        final Tree tree;
+        final Parameter.Base<?> rateParameter;
+        final UCRelaxedCladeClockModel clock;
+        int changedSlot;
+        Object oldValue;
+
+        Chain(long seed, boolean useCategories) {
+            random = new Random(seed);
+            tree = TestTrees.randomTree(40, random);
+            Randomizer.setSeed(seed);
+            clock = new UCRelaxedCladeClockModel();
+            if (useCategories) {
+                rateParameter = new IntegerParameter(new Integer[] { 0 });
+                clock.initByName("tree", tree, "taxonset", TestTrees.taxa(TestTrees.randomClade(tree, 10, random)),
+                        "distr", CladeBranchesTest.logNormal(), "rateCategories", rateParameter, "normalize", true);
+            } else {
+                rateParameter = new RealParameter(new Double[] { 0.5 });
+                clock.initByName("tree", tree, "taxonset", TestTrees.taxa(TestTrees.randomClade(tree, 10, random)),
+                        "distr", CladeBranchesTest.logNormal(), "rateQuantiles", rateParameter, "normalize", true,
+                        "fastInverseCDF", true);
+            }
+            clock.store();
+        }
+
+        void propose() {
+            tree.setEverythingDirty(false);
+            rateParameter.setEverythingDirty(false);
+            changedSlot = -1;
+            if (random.nextInt(3) == 0) {
+                TestTrees.moveHeight(tree, random);
+            } else {
+                changedSlot = random.nextInt(rateParameter.getDimension());
+                oldValue = rateParameter.getValue(changedSlot);
+                if (rateParameter instanceof IntegerParameter) {
+                    IntegerParameter categories = (IntegerParameter) rateParameter;
+                    categories.setValue(changedSlot, random.nextInt(categories.getUpper() + 1));
+                } else {
+                    ((RealParameter) rateParameter).setValue(changedSlot, random.nextDouble());
+                }
+            }
+            clock.requiresRecalculation();
+        }
+
+        // only the changes of the rate parameter are rejected
+        void accept(boolean accept) {
+            if (accept) {
+                clock.store();
+            } else {
+                if (rateParameter instanceof IntegerParameter) {
+                    ((IntegerParameter) rateParameter).setValue(changedSlot, (Integer) oldValue);
+                } else {
+                    ((RealParameter) rateParameter).setValue(changedSlot, (Double) oldValue);
+                }
+                rateParameter.setEverythingDirty(false);
+                clock.restore();
+            }
+        }
+    }
+}
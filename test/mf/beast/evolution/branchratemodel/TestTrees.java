@@ -0,0 +1,127 @@
+package mf.beast.evolution.branchratemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+
+/**
+ * Random trees and topology changes shared by the unit tests.
+ */
+public class TestTrees {
+
+    /**
+     * @return a random ultrametric tree with taxa t0 ... t(taxonCount-1)
+     */
+    public static Tree randomTree(int taxonCount, Random random) {
+        List<String> newicks = new ArrayList<>();
+        List<Double> heights = new ArrayList<>();
+        for (int i = 0; i < taxonCount; i++) {
+            newicks.add("t" + i);
+            heights.add(0.0);
+        }
+        double height = 0;
+        while (newicks.size() > 1) {
+            height += random.nextDouble() / newicks.size();
+            int i = random.nextInt(newicks.size());
+            String left = newicks.remove(i) + ":" + (height - heights.remove(i));
+            int j = random.nextInt(newicks.size());
+            String right = newicks.remove(j) + ":" + (height - heights.remove(j));
+            newicks.add("(" + left + "," + right + ")");
+            heights.add(height);
+        }
+        return new TreeParser(newicks.get(0) + ";", false, false, true, 1);
+    }
+
+    /**
+     * @return the taxa below node
+     */
+    public static TaxonSet taxa(Node node) {
+        List<Taxon> taxa = new ArrayList<>();
+        for (Node leaf : node.getAllLeafNodes()) {
+            taxa.add(new Taxon(leaf.getID()));
+        }
+        return new TaxonSet(taxa);
+    }
+
+    /**
+     * @return a random internal node that is not the root and has at least
+     *         minLeafCount leaves
+     */
+    public static Node randomClade(Tree tree, int minLeafCount, Random random) {
+        while (true) {
+            Node node = tree.getNode(random.nextInt(tree.getNodeCount()));
+            if (!node.isRoot() && node.getAllLeafNodes().size() >= minLeafCount) {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Prunes a random subtree and regrafts it on a random branch, keeping the
+     * root and valid node heights. The tree is put in editing state first, the
+     * moved nodes are left dirty.
+     */
+    public static void subtreePruneRegraft(Tree tree, Random random) {
+        tree.startEditing(null);
+        while (true) {
+            Node node = tree.getNode(random.nextInt(tree.getNodeCount()));
+            if (node.isRoot() || node.getParent().isRoot()) {
+                continue;
+            }
+            Node parent = node.getParent();
+            Node sibling = parent.getChild(0) == node ? parent.getChild(1) : parent.getChild(0);
+            Node target = tree.getNode(random.nextInt(tree.getNodeCount()));
+            if (target.isRoot() || target == parent || target == sibling || isAncestor(node, target)) {
+                continue;
+            }
+            Node grandParent = parent.getParent();
+            grandParent.removeChild(parent);
+            parent.removeChild(sibling);
+            grandParent.addChild(sibling);
+
+            Node targetParent = target.getParent();
+            targetParent.removeChild(target);
+            targetParent.addChild(parent);
+            parent.addChild(target);
+
+            double lower = Math.max(node.getHeight(), target.getHeight());
+            parent.setHeight(lower + random.nextDouble() * (targetParent.getHeight() - lower));
+            return;
+        }
+    }
+
+    /**
+     * Draws the height of a random internal node, other than the root, between
+     * the heights of its children and its parent. The tree is put in editing
+     * state first.
+     */
+    public static void moveHeight(Tree tree, Random random) {
+        tree.startEditing(null);
+        while (true) {
+            Node node = tree.getNode(random.nextInt(tree.getNodeCount()));
+            if (node.isRoot() || node.isLeaf()) {
+                continue;
+            }
+            double lower = Math.max(node.getChild(0).getHeight(), node.getChild(1).getHeight());
+            node.setHeight(lower + random.nextDouble() * (node.getParent().getHeight() - lower));
+            return;
+        }
+    }
+
+    // true if ancestor is node or one of its ancestors
+    private static boolean isAncestor(Node ancestor, Node node) {
+        while (node != null) {
+            if (node == ancestor) {
+                return true;
+            }
+            node = node.getParent();
+        }
+        return false;
+    }
+}